@@ -0,0 +1,196 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pcollections.ConsPStack;
+import org.pcollections.Empty;
+import org.pcollections.PSequence;
+import org.pcollections.PVector;
+
+/**
+ * Measures {@link Backward#backward(List, List)} on the scenarios of
+ * <code>Main.testBackward</code>, repeated up to the requested number
+ * of produced tokens, with a single edit in the middle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class BackwardBenchmark {
+
+    /**
+     * Per-thread counters, reported per second alongside the score.
+     *
+     * Their ratio is the number of forward steps per call.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class ForwardCounters {
+
+        public long forwardCalls;
+        public long forwardSteps;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            forwardCalls = 0;
+            forwardSteps = 0;
+        }
+    }
+
+    /** The marker identifier which an edit replaces. */
+    private static final String TARGET = "target";
+
+    /**
+     * A scenario: macros, a unit repeated to the requested size, the
+     * unit used once in the middle, and the edit made to it.
+     */
+    private static class Scenario {
+
+        private final String macros;
+        private final String unit;
+        private final String marked;
+        /* The replacement for the marker, or null for no edit. */
+        private final List<String> edit;
+        /* Whether the edit also removes the tokens which follow the marker on its line. */
+        private final boolean spanning;
+
+        Scenario(String macros, String unit, String marked, @CheckForNull List<String> edit, boolean spanning) {
+            this.macros = macros;
+            this.unit = unit;
+            this.marked = marked;
+            this.edit = edit;
+            this.spanning = spanning;
+        }
+    }
+
+    @Nonnull
+    private static String nest(@Nonnull String macro, @Nonnull String arg, int depth) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+            buf.append(macro).append('(');
+        buf.append(arg);
+        for (int i = 0; i < depth; i++)
+            buf.append(')');
+        return buf.toString();
+    }
+
+    @Nonnull
+    private static Scenario scenario(@Nonnull String name) {
+        String nested = "#define inc(x) x+1\n#define sqr(x) x*x\n#define id(x) x\n";
+        if ("identity".equals(name))
+            return new Scenario(nested + "#define xy x y\n",
+                    "a " + nest("inc", "sqr(v)", 3) + " xy;\n",
+                    "a " + nest("inc", "sqr(v)", 3) + " xy;\n",
+                    null, false);
+        if ("nested_argument".equals(name))
+            return new Scenario(nested,
+                    nest("id", "inc(v)", 8) + ";\n",
+                    nest("id", "inc(" + TARGET + ")", 8) + ";\n",
+                    Collections.singletonList("edited"), false);
+        if ("spanning".equals(name))
+            return new Scenario("#define xy x y\n#define add(x,y) x+y\n",
+                    "a add(b,xy) xy c;\n",
+                    TARGET + " add(b,xy) xy c;\n",
+                    Arrays.asList("edited", " ", "span"), true);
+        if ("else_branch".equals(name))
+            return new Scenario("",
+                    "#ifdef X\ny\n#else\nz\n#endif\n",
+                    "#ifdef X\ny\n#else\n" + TARGET + "\n#endif\n",
+                    Arrays.asList("edited", " ", "b"), false);
+        throw new IllegalArgumentException("Unknown scenario " + name);
+    }
+
+    @Param({"identity", "nested_argument", "spanning", "else_branch"})
+    public String scenario;
+    /** The approximate number of produced tokens. */
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int tokens;
+
+    private Main.Result result;
+    private List<PSequence<TokenS>> changes;
+
+    @Nonnull
+    private static Main.Result preprocess(@Nonnull String source) throws Exception {
+        Main.Result result = Main.preprocess(new String[0], source);
+        if (result == null)
+            throw new IllegalStateException("Preprocessing failed");
+        return result;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Scenario s = scenario(scenario);
+        int perUnit = preprocess(s.macros + s.unit).produced.size()
+                - preprocess(s.macros).produced.size();
+        int units = Math.max(1, tokens / Math.max(1, perUnit));
+        StringBuilder buf = new StringBuilder(s.macros);
+        for (int i = 0; i < units; i++)
+            buf.append(i == units / 2 ? s.marked : s.unit);
+        result = preprocess(buf.toString());
+
+        changes = new ArrayList<PSequence<TokenS>>(result.produced.size());
+        boolean removing = false;
+        for (TokenS tok : result.produced) {
+            if (s.edit != null && TARGET.equals(tok.token.getText())) {
+                PVector<TokenS> change = Empty.vector();
+                for (String text : s.edit)
+                    change = change.plus(new TokenS(new Token(TokenType.findTokenType(text), tok.token.getFile(),
+                            tok.token.getLine(), tok.token.getColumn(), text), Empty.<String>bag()));
+                changes.add(change);
+                removing = s.spanning;
+            } else if (removing && tok.token.getType() != Token.NL) {
+                changes.add(Empty.<TokenS>vector());
+            } else {
+                removing = false;
+                changes.add(ConsPStack.singleton(tok));
+            }
+        }
+    }
+
+    @Benchmark
+    public List<PSequence<TokenS>> backward(ForwardCounters counters) {
+        Backward backward = new Backward(result.preprocessor);
+        List<PSequence<TokenS>> out = backward.backward(changes, result.actions);
+        if (out == null)
+            throw new IllegalStateException("Backward failed for " + scenario);
+        counters.forwardCalls += backward.getForwardCalls();
+        counters.forwardSteps += backward.getForwardSteps();
+        return out;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * Preprocesses every header in a real include tree, by default
+ * <code>/usr/include</code>, once per configuration.
+ *
+ * This is a plain harness rather than a JMH benchmark, because it
+ * reports the distribution of per-file latencies, which JMH does not.
+ * For each configuration, it reports latency percentiles, total
+ * throughput, failures and peak heap. Each file is preprocessed as a
+ * translation unit on its own, so headers which must be included
+ * after others fail; failures are counted rather than fatal.
+ *
+ * Run it with <code>./gradlew corpus -Pcorpus='--root /usr/include'</code>.
+ */
+public class CorpusBenchmark {
+
+    /** A filesystem and caches to preprocess the corpus with. */
+    private static class Configuration {
+
+        private final String name;
+        private final VirtualFileSystem filesystem;
+        @CheckForNull
+        private final TokenCache tokenCache;
+        @CheckForNull
+        private final IncludeCache includeCache;
+
+        Configuration(@Nonnull String name, @Nonnull VirtualFileSystem filesystem,
+                @CheckForNull TokenCache tokenCache, @CheckForNull IncludeCache includeCache) {
+            this.name = name;
+            this.filesystem = filesystem;
+            this.tokenCache = tokenCache;
+            this.includeCache = includeCache;
+        }
+    }
+
+    @Nonnull
+    private static Configuration configuration(@Nonnull String name) {
+        if ("java".equals(name))
+            return new Configuration(name, new JavaFileSystem(), null, null);
+        if ("mapped".equals(name)) {
+            JavaFileSystem fs = new JavaFileSystem();
+            fs.setMemoryMapped(true);
+            return new Configuration(name, fs, null, null);
+        }
+        if ("cached".equals(name))
+            return new Configuration(name, new JavaFileSystem(), new TokenCache(), new IncludeCache());
+        if ("snapshot".equals(name))
+            return new Configuration(name, new SnapshotFileSystem(), new TokenCache(), new IncludeCache());
+        throw new IllegalArgumentException("Unknown configuration " + name);
+    }
+
+    /** The outcome of one pass over the corpus. */
+    private static class Pass {
+
+        private final String name;
+        private final long[] nanos;
+        private final long tokens;
+        private final int failures;
+        private final long elapsed;
+        private final long peakHeap;
+
+        Pass(String name, long[] nanos, long tokens, int failures, long elapsed, long peakHeap) {
+            this.name = name;
+            this.nanos = nanos;
+            this.tokens = tokens;
+            this.failures = failures;
+            this.elapsed = elapsed;
+            this.peakHeap = peakHeap;
+        }
+
+        /* The sample at the given fraction, exactly. */
+        long percentileMicros(double fraction) {
+            if (nanos.length == 0)
+                return 0;
+            int index = (int) Math.ceil(fraction * nanos.length) - 1;
+            return nanos[Math.max(0, Math.min(index, nanos.length - 1))] / 1000;
+        }
+
+        @Nonnull
+        JsonObject toJson() {
+            JsonObject out = new JsonObject();
+            out.addProperty("configuration", name);
+            out.addProperty("files", nanos.length);
+            out.addProperty("failures", failures);
+            out.addProperty("tokens", tokens);
+            out.addProperty("elapsed_ms", elapsed / 1000000);
+            out.addProperty("files_per_s", nanos.length * 1e9 / Math.max(elapsed, 1));
+            out.addProperty("tokens_per_s", tokens * 1e9 / Math.max(elapsed, 1));
+            out.addProperty("p50_us", percentileMicros(0.50));
+            out.addProperty("p90_us", percentileMicros(0.90));
+            out.addProperty("p99_us", percentileMicros(0.99));
+            out.addProperty("max_us", percentileMicros(1.0));
+            out.addProperty("peak_heap_bytes", peakHeap);
+            return out;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %6d files %5d failed %10d tokens %8.1f files/s %10.0f tokens/s"
+                    + "  p50 %6d us  p90 %6d us  p99 %7d us  max %8d us  peak heap %5d MB",
+                    name, nanos.length, failures, tokens,
+                    nanos.length * 1e9 / Math.max(elapsed, 1), tokens * 1e9 / Math.max(elapsed, 1),
+                    percentileMicros(0.50), percentileMicros(0.90), percentileMicros(0.99), percentileMicros(1.0),
+                    peakHeap >> 20);
+        }
+    }
+
+    /* Counts errors and warnings without logging them. */
+    private static class CountingListener extends DefaultPreprocessorListener {
+
+        @Override
+        protected void print(String msg) {
+        }
+    }
+
+    private final List<String> includePath = new ArrayList<String>();
+    private final Map<String, String> macros = new LinkedHashMap<String, String>();
+
+    /**
+     * Returns the headers under the given root, in a stable order.
+     */
+    @Nonnull
+    public static List<File> discover(@Nonnull File root, @Nonnegative int limit)
+            throws IOException {
+        final List<File> out = new ArrayList<File>();
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.toString().endsWith(".h"))
+                    out.add(file.toFile());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(out);
+        if (limit > 0 && out.size() > limit)
+            return new ArrayList<File>(out.subList(0, limit));
+        return out;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    /* The sum of the pools' peaks, which bounds the true peak from above. */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    /**
+     * Preprocesses one file.
+     *
+     * @return the number of tokens, or -1 on failure.
+     */
+    private long preprocess(@Nonnull Configuration c, @Nonnull File file) {
+        Preprocessor pp = new Preprocessor();
+        CountingListener listener = new CountingListener();
+        pp.setListener(listener);
+        pp.setFileSystem(c.filesystem);
+        pp.setTokenCache(c.tokenCache);
+        pp.setIncludeCache(c.includeCache);
+        pp.addFeature(Feature.DIGRAPHS);
+        pp.addFeature(Feature.TRIGRAPHS);
+        pp.addFeature(Feature.PRAGMA_ONCE);
+        pp.getSystemIncludePath().addAll(includePath);
+        try {
+            for (Map.Entry<String, String> e : macros.entrySet())
+                pp.addMacro(e.getKey(), e.getValue());
+            pp.addInput(c.filesystem.getFile(file.getPath()).getSource());
+            long count = 0;
+            for (;;) {
+                Token tok = pp.token().token;
+                if (tok.getType() == Token.EOF)
+                    break;
+                count++;
+            }
+            return listener.getErrors() == 0 ? count : -1;
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            try {
+                pp.close();
+            } catch (IOException e) {
+                // Ignored.
+            }
+        }
+    }
+
+    @Nonnull
+    private Pass run(@Nonnull Configuration c, @Nonnull List<File> files) {
+        System.gc();
+        resetPeakHeap();
+        long[] nanos = new long[files.size()];
+        long tokens = 0;
+        int failures = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < files.size(); i++) {
+            long t = System.nanoTime();
+            long count = preprocess(c, files.get(i));
+            nanos[i] = System.nanoTime() - t;
+            if (count < 0)
+                failures++;
+            else
+                tokens += count;
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(nanos);
+        return new Pass(c.name, nanos, tokens, failures, elapsed, getPeakHeap());
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        OptionSpec<?> helpOption = parser.accepts("help",
+                "Displays command-line help.")
+                .forHelp();
+        OptionSpec<File> rootOption = parser.accepts("root",
+                "Sets the tree of headers to preprocess.")
+                .withRequiredArg().ofType(File.class).describedAs("dir").defaultsTo(new File("/usr/include"));
+        OptionSpec<File> incdirOption = parser.acceptsAll(Arrays.asList("incdir", "I"),
+                "Adds the directory dir to the list of directories to be searched for header files.")
+                .withRequiredArg().ofType(File.class).describedAs("dir");
+        OptionSpec<String> defineOption = parser.acceptsAll(Arrays.asList("define", "D"),
+                "Defines the given macro.")
+                .withRequiredArg().ofType(String.class).describedAs("name[=definition]");
+        OptionSpec<String> configurationOption = parser.accepts("configuration",
+                "Adds a configuration to measure (java, mapped, cached, snapshot).")
+                .withRequiredArg().ofType(String.class).describedAs("name");
+        OptionSpec<Integer> limitOption = parser.accepts("limit",
+                "Preprocesses at most the first n headers.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n").defaultsTo(0);
+        OptionSpec<Integer> warmupOption = parser.accepts("warmup",
+                "Sets the number of unreported passes before each reported one.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n").defaultsTo(1);
+        OptionSpec<File> jsonOption = parser.accepts("json",
+                "Also writes the results to the given file as JSON.")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+
+        OptionSet options = parser.parse(args);
+        if (options.has(helpOption)) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+
+        File root = options.valueOf(rootOption);
+        CorpusBenchmark benchmark = new CorpusBenchmark();
+        for (File dir : options.valuesOf(incdirOption))
+            benchmark.includePath.add(dir.getAbsolutePath());
+        benchmark.includePath.add(root.getAbsolutePath());
+        /* Debian-style multiarch directories, as gcc searches them. */
+        File[] multiarch = root.listFiles();
+        if (multiarch != null)
+            for (File dir : multiarch)
+                if (dir.isDirectory() && dir.getName().matches("[a-z0-9_]+-linux-gnu[a-z]*"))
+                    benchmark.includePath.add(dir.getAbsolutePath());
+        benchmark.macros.put("__JCPP__", "1");
+        for (String arg : options.valuesOf(defineOption)) {
+            int idx = arg.indexOf('=');
+            if (idx == -1)
+                benchmark.macros.put(arg, "1");
+            else
+                benchmark.macros.put(arg.substring(0, idx), arg.substring(idx + 1));
+        }
+
+        List<String> names = options.valuesOf(configurationOption);
+        if (names.isEmpty())
+            names = Arrays.asList("java", "mapped", "cached", "snapshot");
+        List<File> files = discover(root, options.valueOf(limitOption));
+        System.err.println("Found " + files.size() + " headers under " + root);
+
+        JsonArray json = new JsonArray();
+        for (String name : names) {
+            for (int i = 0; i < options.valueOf(warmupOption); i++)
+                benchmark.run(configuration(name), files);
+            /* A fresh configuration, so that caches start cold. */
+            Pass pass = benchmark.run(configuration(name), files);
+            System.out.println(pass);
+            json.add(pass.toJson());
+        }
+        if (options.has(jsonOption))
+            Files.write(options.valueOf(jsonOption).toPath(),
+                    new GsonBuilder().setPrettyPrinting().create().toJson(json).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-thread counters, which JMH reports as rates alongside the score.
+ *
+ * <code>tokens</code> is the number of tokens per second, and
+ * <code>allocated</code> the bytes allocated per second, by the
+ * measured code; their ratio is the allocation per token.
+ *
+ * @see Allocations#threadAllocatedBytes()
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Counters {
+
+    public long tokens;
+    public long allocated;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        tokens = 0;
+        allocated = 0;
+    }
+}
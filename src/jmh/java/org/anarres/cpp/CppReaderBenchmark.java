@@ -0,0 +1,94 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the characters per second delivered by {@link CppReader},
+ * with and without its read-ahead buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CppReaderBenchmark {
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class CharCounters {
+
+        public long chars;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            chars = 0;
+        }
+    }
+
+    @Param({"function_macros", "includes"})
+    public String scenario;
+    @Param({"1000"})
+    public int lines;
+    /** The read-ahead buffer size; 0 for none. */
+    @Param({"0", "65536"})
+    public int bufsize;
+    @Param({"8192"})
+    public int chunk;
+
+    private Workload workload;
+    private char[] buf;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.get(scenario, lines);
+        buf = new char[chunk];
+    }
+
+    @Benchmark
+    public long read(CharCounters counters) throws Exception {
+        CppReader reader = new CppReader(workload.newPreprocessor(), bufsize);
+        long count = 0;
+        try {
+            for (;;) {
+                int n = reader.read(buf, 0, buf.length);
+                if (n < 0)
+                    break;
+                count += n;
+            }
+        } finally {
+            reader.close();
+        }
+        counters.chars += count;
+        return count;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the lexer alone, without the preprocessor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LexerBenchmark {
+
+    @Param({"lexing", "function_macros", "conditionals"})
+    public String scenario;
+    @Param({"10000"})
+    public int lines;
+
+    private String source;
+
+    @Setup
+    public void setUp() {
+        source = Workloads.get(scenario, lines).getSource();
+    }
+
+    @Benchmark
+    public int lex(Counters counters) throws Exception {
+        long allocated = Allocations.threadAllocatedBytes();
+        LexerSource lexer = new StringLexerSource(source, true);
+        lexer.setListener(new Workload.QuietListener());
+        int count = 0;
+        while (lexer.token().token.getType() != Token.EOF)
+            count++;
+        counters.tokens += count;
+        counters.allocated += Allocations.threadAllocatedBytes() - allocated;
+        return count;
+    }
+}
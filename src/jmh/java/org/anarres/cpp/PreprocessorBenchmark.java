@@ -0,0 +1,78 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures full {@link Preprocessor#token()} loops, one workload
+ * per feature, with action recording for the backward
+ * transformation on and off.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PreprocessorBenchmark {
+
+    @Param({"lexing", "directives", "object_macros", "function_macros", "pasting", "conditionals", "includes", "generated"})
+    public String scenario;
+    @Param({"1000"})
+    public int lines;
+    /** Whether to record actions, as {@link Main} does for the backward transformation. */
+    @Param({"false", "true"})
+    public boolean record;
+
+    private Workload workload;
+
+    @Setup
+    public void setUp() {
+        workload = Workloads.get(scenario, lines);
+    }
+
+    @Benchmark
+    public int preprocess(Counters counters) throws Exception {
+        long allocated = Allocations.threadAllocatedBytes();
+        Preprocessor pp = workload.newPreprocessor();
+        if (record)
+            pp.collector = new ActionCollectorImpl(pp, pp.inputs);
+        int count = 0;
+        for (;;) {
+            TokenS tok = pp.token();
+            if (tok == null || tok.token.getType() == Token.EOF)
+                break;
+            count++;
+        }
+        pp.close();
+        counters.tokens += count;
+        counters.allocated += Allocations.threadAllocatedBytes() - allocated;
+        return count;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An input for a benchmark: a main source, and the headers it may
+ * include, held in memory so that no I/O is measured.
+ */
+public class Workload {
+
+    public static final String DIR = "/workload";
+    public static final String INCLUDE_DIR = DIR + "/" + WorkloadGenerator.INCLUDE_DIR;
+
+    private final String source;
+    private final MemoryFileSystem fileSystem;
+
+    public Workload(@Nonnull String source, @Nonnull MemoryFileSystem fileSystem) {
+        this.source = source;
+        this.fileSystem = fileSystem;
+    }
+
+    public Workload(@Nonnull String source) {
+        this(source, new MemoryFileSystem());
+    }
+
+    @Nonnull
+    public String getSource() {
+        return source;
+    }
+
+    @Nonnull
+    public MemoryFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    /**
+     * Returns a Preprocessor ready to read this workload.
+     */
+    @Nonnull
+    public Preprocessor newPreprocessor() {
+        Preprocessor pp = new Preprocessor();
+        pp.addFeature(Feature.PRAGMA_ONCE);
+        pp.setListener(new QuietListener());
+        pp.setFileSystem(fileSystem);
+        pp.getSystemIncludePath().add(INCLUDE_DIR);
+        pp.addInput(new StringLexerSource(source, true));
+        return pp;
+    }
+
+    /* Benchmarks measure the engine, not the logging. */
+    /* pp */ static class QuietListener extends DefaultPreprocessorListener {
+
+        @Override
+        public void handleWarning(Source source, int line, int column, String msg) {
+        }
+
+        @Override
+        public void handleError(Source source, int line, int column, String msg) {
+        }
+    }
+}
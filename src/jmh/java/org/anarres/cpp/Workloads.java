@@ -0,0 +1,169 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.Map;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * The fixed workloads of the forward benchmarks, one per feature.
+ */
+public class Workloads {
+
+    private Workloads() {
+    }
+
+    @Nonnull
+    public static Workload get(@Nonnull String scenario, @Nonnegative int lines) {
+        if ("lexing".equals(scenario))
+            return new Workload(lexing(lines));
+        if ("directives".equals(scenario))
+            return new Workload(directives(lines));
+        if ("object_macros".equals(scenario))
+            return new Workload(objectMacros(lines));
+        if ("function_macros".equals(scenario))
+            return new Workload(functionMacros(lines));
+        if ("pasting".equals(scenario))
+            return new Workload(pasting(lines));
+        if ("conditionals".equals(scenario))
+            return new Workload(conditionals(lines));
+        if ("includes".equals(scenario))
+            return includes(lines);
+        if ("generated".equals(scenario))
+            return generated(lines, new WorkloadGenerator());
+        throw new IllegalArgumentException("Unknown scenario " + scenario);
+    }
+
+    /** Plain C: identifiers, numbers, strings and comments, no directives. */
+    @Nonnull
+    public static String lexing(int lines) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            switch (i % 4) {
+                case 0:
+                    buf.append("static const unsigned long value_").append(i).append(" = 0x").append(Integer.toHexString(i)).append("UL;\n");
+                    break;
+                case 1:
+                    buf.append("    printf(\"line %d: %s\\n\", ").append(i).append(", name);\n");
+                    break;
+                case 2:
+                    buf.append("/* A block comment on line ").append(i).append(" */ x += 1.5e3f;\n");
+                    break;
+                default:
+                    buf.append("\tif (a[").append(i).append("] >= b && c != 'd') return; // done\n");
+                    break;
+            }
+        }
+        return buf.toString();
+    }
+
+    /** Defines and undefines, with nothing to expand. */
+    @Nonnull
+    public static String directives(int lines) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < lines; i += 3) {
+            buf.append("#define D").append(i).append(" ").append(i).append('\n');
+            buf.append("#undef D").append(i).append('\n');
+            buf.append("#ifdef D").append(i).append("\n#endif\n");
+        }
+        return buf.toString();
+    }
+
+    /** Object-like macros expanding through a few levels. */
+    @Nonnull
+    public static String objectMacros(int lines) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("#define O0 x\n");
+        for (int i = 1; i < 8; i++)
+            buf.append("#define O").append(i).append(" O").append(i - 1).append(" + ").append(i).append('\n');
+        for (int i = 0; i < lines; i++)
+            buf.append("O").append(i % 8).append(" O7;\n");
+        return buf.toString();
+    }
+
+    /** Function-like macros, with arguments which are themselves expanded. */
+    @Nonnull
+    public static String functionMacros(int lines) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("#define ADD(a, b) ((a) + (b))\n");
+        buf.append("#define MUL(a, b) ((a) * (b))\n");
+        buf.append("#define SQ(x) MUL(x, x)\n");
+        buf.append("#define POLY(x, y) ADD(SQ(x), MUL(ADD(x, y), y))\n");
+        for (int i = 0; i < lines; i++)
+            buf.append("r").append(i).append(" = POLY(a").append(i).append(", ADD(b, ").append(i).append("));\n");
+        return buf.toString();
+    }
+
+    /** Token pasting and stringification. */
+    @Nonnull
+    public static String pasting(int lines) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("#define CAT(a, b) a ## b\n");
+        buf.append("#define XCAT(a, b) CAT(a, b)\n");
+        buf.append("#define STR(x) # x\n");
+        buf.append("#define XSTR(x) STR(x)\n");
+        buf.append("#define FIELD(t, n) t CAT(field_, n); const char *CAT(name_, n) = STR(n);\n");
+        for (int i = 0; i < lines; i++)
+            buf.append("FIELD(int, ").append(i).append(") XSTR(XCAT(p, ").append(i).append("))\n");
+        return buf.toString();
+    }
+
+    /** Nested #if, #elif and #else with arithmetic and defined(). */
+    @Nonnull
+    public static String conditionals(int lines) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("#define A 1\n#define B 2\n");
+        for (int i = 0; i < lines; i += 8) {
+            buf.append("#if defined(A) && (B + ").append(i % 5).append(") * 2 > 5 || C\n");
+            buf.append("#  if ").append(i).append(" % 3 == 0\n");
+            buf.append("taken").append(i).append(";\n");
+            buf.append("#  elif !defined(B)\n");
+            buf.append("never").append(i).append(";\n");
+            buf.append("#  endif\n");
+            buf.append("#else\nnever;\n#endif\n");
+        }
+        return buf.toString();
+    }
+
+    /** Guarded headers, each included twice. */
+    @Nonnull
+    public static Workload includes(int lines) {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        StringBuilder buf = new StringBuilder();
+        int headers = Math.max(1, lines / 10);
+        for (int i = 0; i < headers; i++) {
+            String name = "h" + i + ".h";
+            fs.put(Workload.INCLUDE_DIR + "/" + name, "#ifndef H" + i + "_H\n#define H" + i + "_H\n"
+                    + "extern int h" + i + "(int a, char *b);\n#endif\n");
+            buf.append("#include <").append(name).append(">\n");
+            buf.append("#include \"").append(name).append("\"\n");
+        }
+        return new Workload(buf.toString(), fs);
+    }
+
+    /** A workload from the {@link WorkloadGenerator}, with the given settings. */
+    @Nonnull
+    public static Workload generated(int lines, @Nonnull WorkloadGenerator generator) {
+        generator.setLines(lines);
+        Map<String, String> files = generator.generate();
+        MemoryFileSystem fs = new MemoryFileSystem();
+        for (Map.Entry<String, String> e : files.entrySet())
+            fs.put(Workload.DIR + "/" + e.getKey(), e.getValue());
+        return new Workload(files.get(WorkloadGenerator.MAIN), fs);
+    }
+}
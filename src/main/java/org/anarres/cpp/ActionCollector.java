@@ -69,10 +69,26 @@ class ActionCollectorImpl extends ActionCollector {
         return currentTokens.size();
     }
 
+    /* Charges the actions added since start to the Preprocessor's metrics. */
+    private void record(long start, int before) {
+        Metrics metrics = pp.getMetrics();
+        if (metrics == null)
+            return;
+        metrics.add(Metrics.Phase.RECORD, start);
+        metrics.add(Metrics.Counter.ACTIONS, actions.size() - before);
+    }
+
+    private long start() {
+        return (pp.getMetrics() != null) ? System.nanoTime() : 0;
+    }
+
     public void directInsert(Action action) {
         if (pp.collectOnly) return;
+        long start = start();
+        int before = actions.size();
         actions.add(action);
         environment = pp.getCurrentState(environment);
+        record(start, before);
     }
 
     /**
@@ -84,6 +100,8 @@ class ActionCollectorImpl extends ActionCollector {
         if (currentTokens.isEmpty()) {
             throw new Error("skipLast when empty");
         }
+        long start = start();
+        int before = actions.size();
         TokenS last = currentTokens.get(currentTokens.size() - 1);
         if (currentTokens.size() > 1) {
             currentTokens.remove(currentTokens.size() - 1);
@@ -93,6 +111,7 @@ class ActionCollectorImpl extends ActionCollector {
         actions.add(new Skip(environment, last));
         environment = pp.getCurrentState(environment);
         currentTokens = new ArrayList<>();
+        record(start, before);
     }
 
     /**
@@ -102,10 +121,12 @@ class ActionCollectorImpl extends ActionCollector {
     public int delete() {
         if (pp.collectOnly) return -1;
         if (!currentTokens.isEmpty()) {
+            long start = start();
             actions.add(new Replace(environment, TreePVector.from(currentTokens), Collections.<MapSeg>emptyList(), Empty.set()));
             environment = pp.getCurrentState(environment);
 
             currentTokens = new ArrayList<>();
+            record(start, actions.size() - 1);
             return actions.size() - 1;
         }
         return -1;
@@ -116,11 +137,14 @@ class ActionCollectorImpl extends ActionCollector {
      */
     public void replaceWithNewTokens(List<Token> newTokens, PSet<String> disables) {
         if (pp.collectOnly) return;
+        long start = start();
+        int before = actions.size();
         actions.add(new Replace(environment, TreePVector.from(currentTokens), Collections.singletonList(
                 new New(newTokens)
         ), disables));
         environment = pp.getCurrentState(environment);
         currentTokens = new ArrayList<>();
+        record(start, before);
     }
 
     /**
@@ -128,8 +152,11 @@ class ActionCollectorImpl extends ActionCollector {
      */
     public void replaceWithMapping(List<MapSeg> mapping, PSet<String> disables) {
         if (pp.collectOnly) return;
+        long start = start();
+        int before = actions.size();
         actions.add(new Replace(environment, TreePVector.from(currentTokens), mapping, disables));
         environment = pp.getCurrentState(environment);
         currentTokens = new ArrayList<>();
+        record(start, before);
     }
 }
@@ -0,0 +1,354 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A virtual filesystem which serves files from a zip or jar archive.
+ *
+ * The archive is memory-mapped once, and its central directory is
+ * read into an in-memory index when the filesystem is created, so
+ * {@link VirtualFile#isFile()} never touches the disk. Stored
+ * entries are lexed straight from the mapping; deflated entries are
+ * inflated from it.
+ *
+ * Paths are the names of entries within the archive, such as
+ * <code>include/stdio.h</code>; a leading '/' is ignored.
+ * ZIP64 archives are not supported.
+ *
+ * This class is thread-safe. Sources already created remain usable
+ * after the filesystem is closed.
+ *
+ * @see ResourceFileSystem
+ */
+public class ArchiveFileSystem implements VirtualFileSystem, Closeable {
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int LOC_HDR = 30;
+    private static final int CEN_HDR = 46;
+    private static final int END_HDR = 22;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private static class Entry {
+
+        private final int method;
+        private final int offset;
+        private final int csize;
+        private final int size;
+        private final long time;
+
+        Entry(int method, int offset, int csize, int size, long time) {
+            this.method = method;
+            this.offset = offset;
+            this.csize = csize;
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    private final File archive;
+    private final Charset charset;
+    private final Map<String, Entry> entries;
+    /* Guards the mapping against being unmapped while in use. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    @CheckForNull
+    private MappedByteBuffer mapping;
+
+    public ArchiveFileSystem(@Nonnull File archive, @Nonnull Charset charset)
+            throws IOException {
+        this.archive = archive;
+        this.charset = charset;
+        RandomAccessFile raf = new RandomAccessFile(archive, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("Archive too large: " + archive);
+            this.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            /* The mapping remains valid after the channel is closed. */
+            raf.close();
+        }
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            this.entries = index(mapping);
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (RuntimeException e) {
+            close();
+            throw new IOException("Corrupt archive: " + archive, e);
+        }
+    }
+
+    public ArchiveFileSystem(@Nonnull File archive)
+            throws IOException {
+        this(archive, Charset.defaultCharset());
+    }
+
+    @Nonnull
+    private Map<String, Entry> index(@Nonnull ByteBuffer buf)
+            throws IOException {
+        /* The end record is followed by a comment of up to 64K. */
+        int end = -1;
+        for (int i = buf.limit() - END_HDR; i >= 0 && i >= buf.limit() - END_HDR - 0xFFFF; i--) {
+            if (buf.getInt(i) == END_SIG) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+            throw new IOException("Not a zip archive: " + archive);
+        int count = buf.getShort(end + 10) & 0xFFFF;
+        long cenSize = buf.getInt(end + 12) & 0xFFFFFFFFL;
+        long cenOffset = buf.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL)
+            throw new IOException("ZIP64 archives are not supported: " + archive);
+
+        Map<String, Entry> out = new HashMap<String, Entry>(count * 2);
+        int pos = (int) cenOffset;
+        for (int n = 0; n < count; n++) {
+            if (buf.getInt(pos) != CEN_SIG)
+                throw new IOException("Bad central directory entry in " + archive);
+            int flags = buf.getShort(pos + 8) & 0xFFFF;
+            int method = buf.getShort(pos + 10) & 0xFFFF;
+            long time = dosToJavaTime(buf.getInt(pos + 12) & 0xFFFFFFFFL);
+            long csize = buf.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = buf.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nlen = buf.getShort(pos + 28) & 0xFFFF;
+            int elen = buf.getShort(pos + 30) & 0xFFFF;
+            int clen = buf.getShort(pos + 32) & 0xFFFF;
+            long offset = buf.getInt(pos + 42) & 0xFFFFFFFFL;
+            if (csize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL)
+                throw new IOException("ZIP64 archives are not supported: " + archive);
+            byte[] bytes = new byte[nlen];
+            for (int i = 0; i < nlen; i++)
+                bytes[i] = buf.get(pos + CEN_HDR + i);
+            /* As java.util.zip, names are UTF-8 whether or not bit 11 says so. */
+            String name = new String(bytes, StandardCharsets.UTF_8);
+            /* Encrypted entries (bit 0) cannot be read, so are not indexed. */
+            if ((flags & 1) == 0 && !name.endsWith("/"))
+                out.put(normalize(name), new Entry(method, (int) offset, (int) csize, (int) size, time));
+            pos += CEN_HDR + nlen + elen + clen;
+        }
+        return out;
+    }
+
+    private static long dosToJavaTime(long dtime) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set((int) (((dtime >> 25) & 0x7f) + 1980),
+                (int) (((dtime >> 21) & 0x0f) - 1),
+                (int) ((dtime >> 16) & 0x1f),
+                (int) ((dtime >> 11) & 0x1f),
+                (int) ((dtime >> 5) & 0x3f),
+                (int) ((dtime << 1) & 0x3e));
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Removes leading, doubled and trailing separators, and
+     * resolves "." and ".." segments.
+     */
+    @Nonnull
+    /* pp */ static String normalize(@Nonnull String path) {
+        StringBuilder buf = new StringBuilder(path.length());
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals("."))
+                continue;
+            if (segment.equals("..")) {
+                int idx = buf.lastIndexOf("/");
+                buf.setLength(Math.max(idx, 0));
+                continue;
+            }
+            if (buf.length() > 0)
+                buf.append('/');
+            buf.append(segment);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns the number of files in the archive.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public VirtualFile getFile(String path) {
+        return new ArchiveFile(normalize(path));
+    }
+
+    @Override
+    public VirtualFile getFile(String dir, String name) {
+        return getFile(dir + "/" + name);
+    }
+
+    /**
+     * Releases the mapping of the archive.
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (mapping != null)
+                MappedFileLexerSource.unmap(mapping);
+            mapping = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Nonnull
+    private JoinReader read(@Nonnull String path, @Nonnull Entry entry)
+            throws IOException {
+        lock.readLock().lock();
+        try {
+            ByteBuffer buf = mapping;
+            if (buf == null)
+                throw new IOException("Archive closed: " + archive);
+            if (buf.getInt(entry.offset) != LOC_SIG)
+                throw new IOException("Bad local header for " + path + " in " + archive);
+            /* The local extra field may differ from the central one. */
+            int data = entry.offset + LOC_HDR
+                    + (buf.getShort(entry.offset + 26) & 0xFFFF)
+                    + (buf.getShort(entry.offset + 28) & 0xFFFF);
+            ByteBuffer slice = buf.duplicate();
+            slice.limit(data + entry.csize).position(data);
+            slice = slice.slice();
+            switch (entry.method) {
+                case STORED:
+                    return MappedFileLexerSource.read(slice, charset);
+                case DEFLATED:
+                    return MappedFileLexerSource.read(inflate(path, slice, entry.size), charset);
+                default:
+                    throw new IOException("Unsupported compression method " + entry.method + " for " + path + " in " + archive);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Nonnull
+    private ByteBuffer inflate(@Nonnull String path, @Nonnull ByteBuffer in, int size)
+            throws IOException {
+        byte[] input = new byte[in.remaining()];
+        in.get(input);
+        byte[] output = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int length = 0;
+            while (length < size) {
+                int n = inflater.inflate(output, length, size - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                length += n;
+            }
+            if (length != size)
+                throw new IOException("Truncated entry " + path + " in " + archive);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt entry " + path + " in " + archive, e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(output);
+    }
+
+    private class ArchiveFile implements VirtualFile, IncludeCache.Versioned {
+
+        private final String path;
+
+        public ArchiveFile(@Nonnull String path) {
+            this.path = path;
+        }
+
+        @Override
+        public boolean isFile() {
+            return entries.containsKey(path);
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public ArchiveFile getParentFile() {
+            if (path.isEmpty())
+                return null;
+            int idx = path.lastIndexOf('/');
+            return new ArchiveFile(path.substring(0, Math.max(idx, 0)));
+        }
+
+        @Override
+        public ArchiveFile getChildFile(String name) {
+            return new ArchiveFile(normalize(path + "/" + name));
+        }
+
+        @Override
+        public boolean addVersions(List<Long> versions) {
+            /* The index is read once, and never changes. */
+            return true;
+        }
+
+        @Override
+        public Source getSource() throws IOException {
+            Entry entry = entries.get(path);
+            if (entry == null)
+                throw new IOException("No such entry " + path + " in " + archive);
+            return new FileLexerSource(read(path, entry),
+                    new DetachedFile(archive.getPath() + "!/" + path, entry.size, entry.time), path);
+        }
+
+        @Override
+        public String toString() {
+            return archive + "!/" + path;
+        }
+    }
+
+}
@@ -16,7 +16,6 @@
  */
 package org.anarres.cpp;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -42,14 +41,8 @@ import javax.annotation.Nonnull;
         indicies.add(index);
     }
 
-    /* pp */ void expand(@Nonnull Preprocessor p)
-            throws IOException,
-            LexerException {
-        /* Cache expansion. */
-        if (expansion == null) {
-            this.expansion = p.expand(this);
-            // System.out.println("Expanded arg " + this);
-        }
+    /* pp */ void setExpansion(@Nonnull List<TokenS> expansion) {
+        this.expansion = expansion;
     }
 
     @Nonnull
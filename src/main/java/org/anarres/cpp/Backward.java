@@ -2,6 +2,7 @@ package org.anarres.cpp;
 
 import org.pcollections.*;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
@@ -9,6 +10,9 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 class BackResult {
     public List<PSequence<TokenS>> originalChanges;
     public FList<TokenS> rightTokens;
@@ -22,13 +26,42 @@ class BackResult {
 }
 
 public class Backward {
+    private static final Logger LOG = LoggerFactory.getLogger(Backward.class);
+
     private final Strategy[] strategies = new Strategy[]{new PreserveRoot(), new CancelRoot(), new CancelAll()};
     private final Preprocessor pp;
+    private long forwardCalls;
+    private long forwardSteps;
 
     public Backward(Preprocessor pp) {
         this.pp = pp;
     }
 
+    /**
+     * Returns the number of times a candidate was run forward to check it.
+     */
+    public long getForwardCalls() {
+        return forwardCalls;
+    }
+
+    /**
+     * Returns the total number of tokens produced while running
+     * candidates forward.
+     */
+    public long getForwardSteps() {
+        return forwardSteps;
+    }
+
+    /**
+     * Returns the Metrics of the underlying Preprocessor, if any.
+     *
+     * Strategy attempts and forward checks are recorded there.
+     */
+    @CheckForNull
+    public Metrics getMetrics() {
+        return pp.getMetrics();
+    }
+
     @Nullable
     public List<PSequence<TokenS>> backward(final List<PSequence<TokenS>> changes, final List<Action> actions) {
         FList<PSequence<TokenS>> leftChanges = FList.fromReversed(changes); // Changes on the left in reversed order
@@ -58,7 +91,7 @@ public class Backward {
             leftChanges = leftChanges.subList(lenSkipped);
             FList<TokenS> restTokens = rightTokens.subList(flattenSize(processedChanges));
 
-            BackResult backResult = back(action, skippedChanges, processedChanges, targetStates, restTokens);
+            BackResult backResult = back(i, action, skippedChanges, processedChanges, targetStates, restTokens);
             if (backResult == null) {
                 return null;
             }
@@ -77,6 +110,7 @@ public class Backward {
     }
 
     private BackResult back(
+            int index,
             Action action,
             final List<PSequence<TokenS>> skippedChanges,
             FList<PSequence<TokenS>> processedChanges,
@@ -94,6 +128,7 @@ public class Backward {
         }
 
         for (Strategy strategy : strategies) {
+            Object event = Events.beginStrategy();
             List<PSequence<TokenS>> originalChanges;
             if (action instanceof Skip) {
                 originalChanges = Empty.vector();
@@ -109,6 +144,7 @@ public class Backward {
                 }
                 originalChanges = strategy.back(replace, withoutDisabled);
                 if (originalChanges == null) {
+                    strategy(event, index, strategy, false);
                     continue;
                 }
             } else {
@@ -117,34 +153,54 @@ public class Backward {
 
             FList<TokenS> rightTokens = FList.concat(flatten(skippedChanges), FList.concat(flatten(originalChanges), restTokens));
             if (tryForward(action.beforeEnv, rightTokens, targetStates)) {
+                strategy(event, index, strategy, true);
                 targetStates = new EnvAndRest(action.beforeEnv, rightTokens, targetStates);
                 return new BackResult(originalChanges, rightTokens, targetStates);
             }
+            strategy(event, index, strategy, false);
         }
         return null;
     }
 
+    private void strategy(@CheckForNull Object event, int index,
+            @Nonnull Strategy strategy, boolean success) {
+        Metrics metrics = pp.getMetrics();
+        if (metrics != null)
+            metrics.strategy(strategy.getClass().getSimpleName(), success);
+        Events.commitStrategy(event, index, strategy.getClass().getSimpleName(), success);
+    }
+
     private boolean tryForward(Environment env, FList<TokenS> tokens, TargetStates targetStates) {
+        forwardCalls++;
+        Metrics metrics = pp.getMetrics();
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        Object event = Events.beginForward();
+        int step = 0;
+        String outcome = null;
         try {
             pp.setCurrentState(env, tokens);
-            int step = 0;
             for (; ; ) {
                 if (tokens != null) {
 //                    System.out.println("Test step " + step + " env " + env + " rest " + tokens + " on\n" + targetStates);
                     if (targetStates.matches(env, tokens)) {
 //                        System.out.println("steps=" + step);
 //                        System.out.println();
+                        outcome = Events.MATCHED;
                         return true;
                     }
                 }
 
                 step++;
+                forwardSteps++;
 
                 Token token = pp.token().token;
                 env = pp.getCurrentState(env);
                 if (token.getType() == Token.EOF) {
                     if (tokens != null && tokens.isEmpty()) {
-                        System.out.println("Failed due to drain");
+                        LOG.debug("Failed due to drain");
+                        if (metrics != null)
+                            metrics.increment(Metrics.Counter.FORWARD_DRAINED);
+                        outcome = Events.DRAINED;
                         return false;
                     } else {
                         tokens = FList.empty();
@@ -152,7 +208,10 @@ public class Backward {
                 } else {
                     targetStates = targetStates.whenSkip(token);
                     if (targetStates == null) {
-                        System.out.println("Failed due to skip bad token " + token);
+                        LOG.debug("Failed due to skip bad token " + token);
+                        if (metrics != null)
+                            metrics.increment(Metrics.Counter.FORWARD_MISMATCHED);
+                        outcome = Events.MISMATCHED;
                         return false;
                     }
                     tokens = pp.getRestTokens();
@@ -160,6 +219,12 @@ public class Backward {
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            if (metrics != null) {
+                metrics.add(Metrics.Phase.FORWARD, start);
+                metrics.add(Metrics.Counter.FORWARD_STEPS, step);
+            }
+            Events.commitForward(event, step, outcome);
         }
     }
 
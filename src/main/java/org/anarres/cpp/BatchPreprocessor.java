@@ -0,0 +1,426 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Preprocesses many translation units in parallel, with a shared
+ * configuration.
+ *
+ * Each worker thread configures one {@link Preprocessor}, and
+ * resets it before each file, so that the conditionals and include
+ * guards it learns are kept from one file to the next. The workers
+ * share the {@link TokenCache}, the {@link IncludeCache}, the
+ * optional {@link Prelude} and the {@link VirtualFileSystem}, all of
+ * which must therefore be thread-safe.
+ */
+public class BatchPreprocessor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchPreprocessor.class);
+
+    /**
+     * The outcome of a batch.
+     */
+    public static class Result {
+
+        private final int files;
+        private final Map<File, String> failures;
+        private final long tokens;
+        private final long nanos;
+
+        /* pp */ Result(int files, @Nonnull Map<File, String> failures, long tokens, long nanos) {
+            this.files = files;
+            this.failures = failures;
+            this.tokens = tokens;
+            this.nanos = nanos;
+        }
+
+        /** Returns the number of files processed, including failures. */
+        @Nonnegative
+        public int getFiles() {
+            return files;
+        }
+
+        /** Returns the reason for each file which failed. */
+        @Nonnull
+        public Map<File, String> getFailures() {
+            return failures;
+        }
+
+        /** Returns the total number of tokens produced. */
+        @Nonnegative
+        public long getTokens() {
+            return tokens;
+        }
+
+        @Nonnegative
+        public long getElapsedNanos() {
+            return nanos;
+        }
+
+        public double getFilesPerSecond() {
+            return files * 1e9 / Math.max(nanos, 1);
+        }
+
+        public double getTokensPerSecond() {
+            return tokens * 1e9 / Math.max(nanos, 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files (%d failed), %d tokens in %.3f s: %.1f files/s, %.1f tokens/s",
+                    files, failures.size(), tokens, nanos / 1e9,
+                    getFilesPerSecond(), getTokensPerSecond());
+        }
+    }
+
+    private final int threads;
+    private final List<String> quoteincludepath = new ArrayList<String>();
+    private final List<String> sysincludepath = new ArrayList<String>();
+    private final List<String> frameworkspath = new ArrayList<String>();
+    private final Set<Feature> features = EnumSet.noneOf(Feature.class);
+    private final Set<Warning> warnings = EnumSet.noneOf(Warning.class);
+    private final Map<String, String> macros = new LinkedHashMap<String, String>();
+    private VirtualFileSystem filesystem = new JavaFileSystem();
+    @CheckForNull
+    private TokenCache tokenCache = new TokenCache();
+    @CheckForNull
+    private IncludeCache includeCache = new IncludeCache();
+    @CheckForNull
+    private Prelude prelude;
+
+    /**
+     * @param threads the number of worker threads.
+     */
+    public BatchPreprocessor(@Nonnegative int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least one thread, not " + threads);
+        this.threads = threads;
+    }
+
+    /** Returns the user include path, which may be freely modified. */
+    @Nonnull
+    public List<String> getQuoteIncludePath() {
+        return quoteincludepath;
+    }
+
+    /** Returns the system include path, which may be freely modified. */
+    @Nonnull
+    public List<String> getSystemIncludePath() {
+        return sysincludepath;
+    }
+
+    /** Returns the frameworks path, which may be freely modified. */
+    @Nonnull
+    public List<String> getFrameworksPath() {
+        return frameworkspath;
+    }
+
+    /** Returns the feature-set, which may be freely modified. */
+    @Nonnull
+    public Set<Feature> getFeatures() {
+        return features;
+    }
+
+    /** Returns the warning-set, which may be freely modified. */
+    @Nonnull
+    public Set<Warning> getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * Returns the macros defined in every translation unit, as
+     * name and value, which may be freely modified.
+     */
+    @Nonnull
+    public Map<String, String> getMacros() {
+        return macros;
+    }
+
+    /** Sets the file system, which must be safe for concurrent use. */
+    public void setFileSystem(@Nonnull VirtualFileSystem filesystem) {
+        this.filesystem = filesystem;
+    }
+
+    /** Sets the shared token cache, or null to lex every header. */
+    public void setTokenCache(@CheckForNull TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
+    @CheckForNull
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    /** Sets the shared include cache, or null to search every time. */
+    public void setIncludeCache(@CheckForNull IncludeCache includeCache) {
+        this.includeCache = includeCache;
+    }
+
+    @CheckForNull
+    public IncludeCache getIncludeCache() {
+        return includeCache;
+    }
+
+    /** Sets the state from which every translation unit starts. */
+    public void setPrelude(@CheckForNull Prelude prelude) {
+        this.prelude = prelude;
+    }
+
+    /* Builds a preprocessor for one worker. */
+    @Nonnull
+    private Preprocessor newPreprocessor()
+            throws LexerException {
+        Preprocessor pp = (prelude != null) ? new Preprocessor(prelude) : new Preprocessor();
+        pp.setFileSystem(filesystem);
+        pp.setTokenCache(tokenCache);
+        pp.setIncludeCache(includeCache);
+        pp.addFeatures(features);
+        pp.addWarnings(warnings);
+        pp.getQuoteIncludePath().addAll(quoteincludepath);
+        pp.getSystemIncludePath().addAll(sysincludepath);
+        pp.getFrameworksPath().addAll(frameworkspath);
+        for (Map.Entry<String, String> e : macros.entrySet())
+            pp.addMacro(e.getKey(), e.getValue());
+        return pp;
+    }
+
+    /*
+     * A preprocessor which is reused for every file on one worker
+     * thread, and reset to its configured state before each.
+     */
+    /**
+     * Returns where the output for the given input is written.
+     *
+     * An absolute input is placed as if it were relative to the root.
+     *
+     * @throws IOException if the output would be outside the directory.
+     */
+    @Nonnull
+    /* pp */ static File getOutput(@Nonnull File input, @Nonnull File outdir)
+            throws IOException {
+        Path path = Paths.get(input.getPath() + ".i").normalize();
+        if (path.getRoot() != null)
+            path = path.getRoot().relativize(path);
+        if (path.startsWith(".."))
+            throw new IOException("Output for " + input + " would be outside " + outdir);
+        return new File(outdir, path.toString());
+    }
+
+    private class Worker {
+
+        private final Preprocessor pp;
+        private final Prelude start;
+
+        Worker() throws LexerException {
+            this.pp = newPreprocessor();
+            this.start = pp.getPrelude();
+        }
+
+        /**
+         * Preprocesses a single file.
+         *
+         * @return the number of tokens produced.
+         */
+        @Nonnegative
+        long preprocess(@Nonnull File input, @CheckForNull File outdir)
+                throws IOException,
+                LexerException {
+            DefaultPreprocessorListener listener = new DefaultPreprocessorListener();
+            pp.reset(start);
+            pp.setListener(listener);
+            pp.addInput(new FileLexerSource(input, StandardCharsets.UTF_8));
+            Writer out = null;
+            if (outdir != null) {
+                File file = getOutput(input, outdir);
+                Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+            }
+            try {
+                long count = 0;
+                for (;;) {
+                    Token tok = pp.token().token;
+                    if (tok.getType() == Token.EOF)
+                        break;
+                    count++;
+                    if (out != null)
+                        out.write(tok.getText());
+                }
+                if (listener.getErrors() > 0)
+                    throw new LexerException(listener.getErrors() + " error(s)");
+                return count;
+            } finally {
+                if (out != null)
+                    out.close();
+                pp.close();
+            }
+        }
+    }
+
+    /**
+     * Preprocesses the given files, and waits for all of them.
+     *
+     * @param inputs the files to preprocess.
+     * @param outdir the directory under which to write each output,
+     *	named for its input with ".i" appended, or null to discard it.
+     * @return the aggregate outcome.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @Nonnull
+    public Result run(@Nonnull List<File> inputs, @CheckForNull final File outdir)
+            throws InterruptedException {
+        final AtomicLong tokens = new AtomicLong();
+        final Map<File, String> failures = Collections.synchronizedMap(new LinkedHashMap<File, String>());
+        long start = System.nanoTime();
+        final ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final File input : inputs) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Worker worker = workers.get();
+                            if (worker == null) {
+                                worker = new Worker();
+                                workers.set(worker);
+                            }
+                            tokens.addAndGet(worker.preprocess(input, outdir));
+                        } catch (Exception e) {
+                            LOG.debug("Failed to preprocess " + input, e);
+                            failures.put(input, String.valueOf(e.getMessage()));
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return new Result(inputs.size(), failures, tokens.get(), System.nanoTime() - start);
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        OptionSpec<?> helpOption = parser.accepts("help",
+                "Displays command-line help.")
+                .forHelp();
+        OptionSpec<Integer> jobsOption = parser.acceptsAll(Arrays.asList("jobs", "j"),
+                "Sets the number of worker threads.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n")
+                .defaultsTo(Runtime.getRuntime().availableProcessors());
+        OptionSpec<String> defineOption = parser.acceptsAll(Arrays.asList("define", "D"),
+                "Defines the given macro.")
+                .withRequiredArg().ofType(String.class).describedAs("name[=definition]");
+        OptionSpec<File> incdirOption = parser.acceptsAll(Arrays.asList("incdir", "I"),
+                "Adds the directory dir to the list of directories to be searched for header files.")
+                .withRequiredArg().ofType(File.class).describedAs("dir");
+        OptionSpec<File> iquoteOption = parser.acceptsAll(Arrays.asList("iquote"),
+                "Adds the directory dir to the list of directories to be searched for header files included using \"\".")
+                .withRequiredArg().ofType(File.class).describedAs("dir");
+        OptionSpec<File> preludeOption = parser.accepts("prelude",
+                "Starts every file from the macros and state saved by --save-prelude.")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OptionSpec<File> listOption = parser.accepts("inputs",
+                "Reads the files to process from the given file, one per line.")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OptionSpec<File> outputOption = parser.acceptsAll(Arrays.asList("output", "o"),
+                "Writes each output under the given directory.")
+                .withRequiredArg().ofType(File.class).describedAs("dir");
+        OptionSpec<File> inputsOption = parser.nonOptions()
+                .ofType(File.class).describedAs("Files to process.");
+
+        OptionSet options = parser.parse(args);
+        if (options.has(helpOption)) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+
+        BatchPreprocessor batch = new BatchPreprocessor(options.valueOf(jobsOption));
+        batch.getFeatures().add(Feature.DIGRAPHS);
+        batch.getFeatures().add(Feature.TRIGRAPHS);
+        batch.getFeatures().add(Feature.PRAGMA_ONCE);
+        batch.getWarnings().add(Warning.IMPORT);
+        batch.getMacros().put("__JCPP__", "1");
+        for (String arg : options.valuesOf(defineOption)) {
+            int idx = arg.indexOf('=');
+            if (idx == -1)
+                batch.getMacros().put(arg, "1");
+            else
+                batch.getMacros().put(arg.substring(0, idx), arg.substring(idx + 1));
+        }
+        for (File dir : options.valuesOf(incdirOption))
+            batch.getSystemIncludePath().add(dir.getAbsolutePath());
+        batch.getSystemIncludePath().add("/usr/local/include");
+        batch.getSystemIncludePath().add("/usr/include");
+        for (File dir : options.valuesOf(iquoteOption))
+            batch.getQuoteIncludePath().add(dir.getAbsolutePath());
+        if (options.has(preludeOption))
+            batch.setPrelude(Prelude.read(options.valueOf(preludeOption)));
+
+        List<File> inputs = new ArrayList<File>(options.valuesOf(inputsOption));
+        for (File list : options.valuesOf(listOption))
+            for (String line : Files.readAllLines(list.toPath(), StandardCharsets.UTF_8))
+                if (!line.trim().isEmpty())
+                    inputs.add(new File(line.trim()));
+
+        Result result = batch.run(inputs, options.valueOf(outputOption));
+        for (Map.Entry<File, String> e : result.getFailures().entrySet())
+            System.err.println(e.getKey() + ": " + e.getValue());
+        System.err.println(result);
+        TokenCache cache = batch.getTokenCache();
+        if (cache != null)
+            System.err.println("Token cache: " + cache.size() + " files, "
+                    + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+        IncludeCache includes = batch.getIncludeCache();
+        if (includes != null)
+            System.err.println("Include cache: " + includes.size() + " resolutions, "
+                    + includes.getHits() + " hits, " + includes.getMisses() + " misses");
+        if (!result.getFailures().isEmpty())
+            System.exit(1);
+    }
+}
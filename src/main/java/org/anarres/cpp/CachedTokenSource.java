@@ -0,0 +1,165 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.IOException;
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.pcollections.Empty;
+import static org.anarres.cpp.Token.*;
+
+/**
+ * A {@link Source} which replays the tokens of a file from a
+ * {@link TokenCache}.
+ *
+ * It stands in for a {@link FileLexerSource} over the same file.
+ */
+/* pp */ class CachedTokenSource extends Source {
+
+    private final String path;
+    private final Token[] tokens;
+    private final TokenCache.Diagnostic[] diagnostics;
+    private int idx;
+    /* The next diagnostic to report or pass over. */
+    private int diag;
+    private int line;
+    private int column;
+
+    /* pp */ List<Token> producedTokens;
+    /* pp */ IncludeGuard guard;
+    /* pp */ boolean hit;
+
+    /* pp */ CachedTokenSource(@Nonnull String path, @Nonnull Token[] tokens,
+            @Nonnull TokenCache.Diagnostic[] diagnostics) {
+        this.path = path;
+        this.tokens = tokens;
+        this.diagnostics = diagnostics;
+        this.idx = 0;
+        this.diag = 0;
+        this.line = 1;
+        this.column = 0;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getName() {
+        return getPath();
+    }
+
+    @Override
+    public int getLine() {
+        return line;
+    }
+
+    @Override
+    public int getColumn() {
+        return column;
+    }
+
+    @Override
+    /* pp */ boolean isNumbered() {
+        return true;
+    }
+
+    /* Moves the position past the given token, as the lexer would. */
+    private void advance(@Nonnull Token tok) {
+        String text = tok.getText();
+        int nl = text.lastIndexOf('\n');
+        if (nl == -1) {
+            line = tok.getLine();
+            column = tok.getColumn() + text.length();
+        } else {
+            int nls = 0;
+            for (int i = 0; i <= nl; i++)
+                if (text.charAt(i) == '\n')
+                    nls++;
+            line = tok.getLine() + nls;
+            column = text.length() - nl - 1;
+        }
+    }
+
+    private void produce(@Nonnull Token tok) {
+        advance(tok);
+        if (producedTokens != null)
+            producedTokens.add(tok);
+    }
+
+    /* Reports the diagnostics issued while lexing the token at idx. */
+    private void report()
+            throws LexerException {
+        while (diag < diagnostics.length && diagnostics[diag].index <= idx) {
+            TokenCache.Diagnostic d = diagnostics[diag++];
+            if (d.error)
+                error(d.line, d.column, d.message);
+            else
+                warning(d.line, d.column, d.message);
+        }
+    }
+
+    @Override
+    public TokenS token()
+            throws IOException,
+            LexerException {
+        report();
+        if (idx >= tokens.length)
+            return new TokenS(new Token(EOF, path, line, column, "<eof>"), Empty.bag());
+        Token tok = tokens[idx++];
+        produce(tok);
+        return new TokenS(tok, Empty.bag());
+    }
+
+    /**
+     * Joins the cached tokens up to the next directive.
+     *
+     * The lexer only produces HASH at the beginning of a line, so
+     * this stops exactly where {@link LexerSource#skipped()} would.
+     */
+    @Override
+    @CheckForNull
+    /* pp */ TokenS skipped()
+            throws IOException,
+            LexerException {
+        if (idx > 0 && tokens[idx - 1].getType() != NL)
+            return null;
+        int end = idx;
+        while (end < tokens.length && tokens[end].getType() != HASH)
+            end++;
+        if (end == idx)
+            return null;
+        Token first = tokens[idx];
+        StringBuilder text = new StringBuilder();
+        for (int i = idx; i < end; i++)
+            text.append(tokens[i].getText());
+        idx = end;
+        /* A skipped block is not lexed afresh, so it has nothing to report. */
+        while (diag < diagnostics.length && diagnostics[diag].index < end)
+            diag++;
+        Token tok = new Token(SKIPPED, path, first.getLine(), first.getColumn(), text.toString());
+        produce(tok);
+        return new TokenS(tok, Empty.bag());
+    }
+
+    @Override
+    public String toString() {
+        return "cached file " + getPath();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import static org.anarres.cpp.Token.CCOMMENT;
+import static org.anarres.cpp.Token.CPPCOMMENT;
+import static org.anarres.cpp.Token.NL;
+import static org.anarres.cpp.Token.P_LINE;
+import static org.anarres.cpp.Token.WHITESPACE;
+
+/**
+ * A {@link TokenSink} which writes token text as UTF-8 to a channel.
+ *
+ * Text is encoded straight into one reusable ByteBuffer, which is
+ * written to the channel whenever it fills. ASCII text, which is
+ * almost all of it, bypasses the encoder.
+ *
+ * Optionally, runs of whitespace and comments may be compressed to a
+ * single space, with blank lines removed, and linemarkers may be
+ * dropped.
+ */
+public class ChannelTokenSink implements TokenSink {
+
+    public static final int DEFAULT_BUFSIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private boolean compress = false;
+    private boolean linemarkers = true;
+
+    /* Whitespace state, when compressing. */
+    private boolean space = false;
+    private boolean bol = true;
+    private long bytes = 0;
+
+    public ChannelTokenSink(@Nonnull WritableByteChannel channel, @Nonnegative int bufsize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(bufsize, 16));
+    }
+
+    public ChannelTokenSink(@Nonnull WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFSIZE);
+    }
+
+    /**
+     * Creates a sink which writes to the given file, replacing it.
+     */
+    @Nonnull
+    public static ChannelTokenSink open(@Nonnull File file)
+            throws IOException {
+        return new ChannelTokenSink(FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Sets whether runs of whitespace and comments are written as a
+     * single space, and blank lines are removed.
+     */
+    public void setCompressWhitespace(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Sets whether linemarkers are written.
+     *
+     * @see Feature#LINEMARKERS
+     */
+    public void setLinemarkers(boolean linemarkers) {
+        this.linemarkers = linemarkers;
+    }
+
+    /** Returns the number of bytes written so far, including any buffered. */
+    @Nonnegative
+    public long getBytesWritten() {
+        return bytes + buffer.position();
+    }
+
+    @Override
+    public void write(@Nonnull Token tok)
+            throws IOException {
+        int type = tok.getType();
+        if (type == P_LINE) {
+            if (linemarkers) {
+                if (compress && !bol)
+                    put("\n");
+                put(tok.getText());
+                bol = true;
+                space = false;
+            }
+            return;
+        }
+        if (!compress) {
+            put(tok.getText());
+            return;
+        }
+        switch (type) {
+            case WHITESPACE:
+            case CCOMMENT:
+            case CPPCOMMENT:
+                space = !bol;
+                break;
+            case NL:
+                if (!bol)
+                    put("\n");
+                bol = true;
+                space = false;
+                break;
+            default:
+                if (space)
+                    put(" ");
+                put(tok.getText());
+                bol = false;
+                space = false;
+                break;
+        }
+    }
+
+    private void put(@Nonnull String text)
+            throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                encode(CharBuffer.wrap(text, i, length));
+                return;
+            }
+            if (!buffer.hasRemaining())
+                drain();
+            buffer.put((byte) c);
+        }
+    }
+
+    private void encode(@Nonnull CharBuffer text)
+            throws IOException {
+        encoder.reset();
+        for (;;) {
+            CoderResult result = encoder.encode(text, buffer, true);
+            if (result.isOverflow()) {
+                drain();
+                continue;
+            }
+            if (result.isUnderflow())
+                break;
+            result.throwException();
+        }
+        while (encoder.flush(buffer).isOverflow())
+            drain();
+    }
+
+    /* Writes the whole buffer to the channel. */
+    private void drain()
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            bytes += channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void flush()
+            throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close()
+            throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
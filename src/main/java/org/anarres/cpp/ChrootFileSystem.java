@@ -41,7 +41,7 @@ public class ChrootFileSystem implements VirtualFileSystem {
         return new ChrootFile(dir, name);
     }
 
-    private class ChrootFile extends File implements VirtualFile {
+    private class ChrootFile extends File implements VirtualFile, TokenCache.Backed {
 
         private File rfile;
 
@@ -74,9 +74,14 @@ public class ChrootFileSystem implements VirtualFileSystem {
             return real.isFile();
         }
 
+        @Override
+        public File getBackingFile() {
+            return new File(root, getPath());
+        }
+
         @Override
         public Source getSource() throws IOException {
-            return new FileLexerSource(new File(root, getPath()),
+            return new FileLexerSource(getBackingFile(),
                     getPath());
         }
     }
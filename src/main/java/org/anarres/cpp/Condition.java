@@ -0,0 +1,67 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+
+/**
+ * The remembered result of an #if or #elif directive.
+ *
+ * After expansion, a conditional expression consists only of
+ * constants, so the result depends only on the text of the directive
+ * and on the definitions of the macros it referred to, directly or
+ * through other macros, or tested with defined(). A name which was
+ * undefined at the time is recorded with a null definition.
+ */
+/* pp */ class Condition {
+
+    private final List<String> text;
+    private final Map<String, Macro> depends;
+    private final boolean value;
+
+    public Condition(@Nonnull List<String> text, @Nonnull Map<String, Macro> depends, boolean value) {
+        this.text = text;
+        this.depends = depends;
+        this.value = value;
+    }
+
+    /**
+     * Returns true if this result still applies to a directive
+     * with the given text, under the given macro definitions.
+     */
+    public boolean matches(@Nonnull List<String> text, @Nonnull Map<String, Macro> macros) {
+        if (!this.text.equals(text))
+            return false;
+        for (Map.Entry<String, Macro> e : depends.entrySet()) {
+            /* Macros are not modified once defined, so identity will do. */
+            if (macros.get(e.getKey()) != e.getValue())
+                return false;
+        }
+        return true;
+    }
+
+    public boolean getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "Condition(" + text + " => " + value + ", depends=" + depends.keySet() + ")";
+    }
+}
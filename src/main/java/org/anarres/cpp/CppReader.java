@@ -38,6 +38,10 @@ public class CppReader extends Reader implements Closeable {
     private final Preprocessor cpp;
     private String token;
     private int idx;
+    /* Preprocessed output read ahead for read(), if buffered. */
+    private final char[] buf;
+    private int bufpos;
+    private int buflen;
 
     public CppReader(@Nonnull final Reader r) {
         cpp = new Preprocessor(new LexerSource(r, true) {
@@ -49,12 +53,26 @@ public class CppReader extends Reader implements Closeable {
         });
         token = "";
         idx = 0;
+        buf = null;
     }
 
     public CppReader(@Nonnull Preprocessor p) {
+        this(p, 0);
+    }
+
+    /**
+     * Creates a CppReader which reads ahead up to the given number of
+     * characters, so that {@link #read()} need not visit the
+     * Preprocessor for every character.
+     *
+     * @param p the Preprocessor to read from.
+     * @param bufsize the size of the read-ahead buffer, or 0 for none.
+     */
+    public CppReader(@Nonnull Preprocessor p, int bufsize) {
         cpp = p;
         token = "";
         idx = 0;
+        buf = (bufsize > 0) ? new char[bufsize] : null;
     }
 
     /**
@@ -121,23 +139,53 @@ public class CppReader extends Reader implements Closeable {
     @Override
     public int read()
             throws IOException {
+        if (buf != null) {
+            if (bufpos == buflen) {
+                int n = fill(buf, 0, buf.length);
+                if (n == -1)
+                    return -1;
+                bufpos = 0;
+                buflen = n;
+            }
+            return buf[bufpos++];
+        }
         if (!refill())
             return -1;
         return token.charAt(idx++);
     }
 
-    /* XXX Very slow and inefficient. */
+    /* Copies whole runs of token text, across token boundaries. */
+    private int fill(char cbuf[], int off, int len)
+            throws IOException {
+        int n = 0;
+        while (n < len) {
+            if (!refill())
+                return (n == 0) ? -1 : n;
+            int count = Math.min(len - n, token.length() - idx);
+            token.getChars(idx, idx + count, cbuf, off + n);
+            idx += count;
+            n += count;
+        }
+        return n;
+    }
+
+    @Override
     public int read(char cbuf[], int off, int len)
             throws IOException {
-        if (token == null)
-            return -1;
-        for (int i = 0; i < len; i++) {
-            int ch = read();
-            if (ch == -1)
-                return i;
-            cbuf[off + i] = (char) ch;
+        if (len == 0)
+            return 0;
+        int n = 0;
+        if (buf != null && bufpos < buflen) {
+            n = Math.min(len, buflen - bufpos);
+            System.arraycopy(buf, bufpos, cbuf, off, n);
+            bufpos += n;
+            if (n == len)
+                return n;
         }
-        return len;
+        int m = fill(cbuf, off + n, len - n);
+        if (m == -1)
+            return (n == 0) ? -1 : n;
+        return n + m;
     }
 
     @Override
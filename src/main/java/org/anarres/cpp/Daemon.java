@@ -0,0 +1,515 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+import org.pcollections.ConsPStack;
+import org.pcollections.Empty;
+import org.pcollections.PSequence;
+import org.pcollections.PVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-lived preprocessor server, which avoids paying for JVM
+ * startup and warm-up on every file.
+ *
+ * Requests and responses are JSON objects, one per line, read from
+ * standard input or from a loopback socket. Each request carries an
+ * "op", an optional "id" which is copied to the response, and the
+ * same "args" and "source" as {@link Main#preprocess}:
+ * <ul>
+ * <li>"preprocess" responds with the "output" text.
+ * <li>"forward" also responds with the "produced" tokens and the
+ *	"actions" which produced them.
+ * <li>"backward" takes "changes", one per produced token, each
+ *	either null for no change or an array of replacement texts,
+ *	and responds with the "original" text.
+ * <li>"stats" responds with a latency histogram per op.
+ * <li>"shutdown" stops reading further requests.
+ * </ul>
+ * A failed request responds with an "error" instead. A request may
+ * pass only the options of Main which neither write files nor read
+ * a prelude.
+ *
+ * On a socket, every request must also carry the "token" which the
+ * daemon was given, so that other local processes cannot use it.
+ *
+ * Requests are handled concurrently, on a virtual thread each where
+ * the JVM provides them and on a pool of threads otherwise, so
+ * responses may be written out of order. All requests share one
+ * {@link TokenCache}.
+ */
+public class Daemon {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Daemon.class);
+
+    private final ExecutorService executor;
+    @CheckForNull
+    private TokenCache tokenCache = new TokenCache();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private volatile boolean shutdown = false;
+    @CheckForNull
+    private volatile String token;
+
+    /**
+     * @param threads the number of worker threads, if the JVM does
+     *	not provide virtual threads.
+     */
+    public Daemon(@Nonnegative int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least one thread, not " + threads);
+        this.executor = newExecutor(threads);
+    }
+
+    /* Prefers a virtual thread per task, which needs Java 21. */
+    @Nonnull
+    private static ExecutorService newExecutor(int threads) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    /** Sets the shared token cache, or null to lex every header. */
+    public void setTokenCache(@CheckForNull TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
+    @CheckForNull
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    /**
+     * Sets the token which every request on a socket must carry.
+     *
+     * @see #newToken()
+     */
+    public void setToken(@CheckForNull String token) {
+        this.token = token;
+    }
+
+    @CheckForNull
+    public String getToken() {
+        return token;
+    }
+
+    /** Returns a random token, which is hard to guess. */
+    @Nonnull
+    public static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder buf = new StringBuilder();
+        for (byte b : bytes)
+            buf.append(String.format("%02x", b & 0xFF));
+        return buf.toString();
+    }
+
+    /* Compares in constant time, so that the token cannot be guessed a character at a time. */
+    private static boolean isToken(@Nonnull JsonObject request, @Nonnull String token) {
+        JsonElement given = request.get("token");
+        if (given == null || !given.isJsonPrimitive())
+            return false;
+        return MessageDigest.isEqual(given.getAsString().getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Returns the latency histogram for the given op. */
+    @Nonnull
+    public LatencyHistogram getHistogram(@Nonnull String op) {
+        LatencyHistogram histogram = histograms.get(op);
+        if (histogram == null) {
+            histograms.putIfAbsent(op, new LatencyHistogram());
+            histogram = histograms.get(op);
+        }
+        return histogram;
+    }
+
+    /** Returns true once a "shutdown" request has been handled. */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Returns the "args" of a request, rebuilt from the options of
+     * {@link Main} which any client may pass. None of them writes a
+     * file or to standard output, or reads a prelude; anything else
+     * fails the request.
+     */
+    @Nonnull
+    /* pp */ static String[] args(@Nonnull JsonObject request) throws LexerException {
+        JsonElement args = request.get("args");
+        if (args == null || args.isJsonNull())
+            return new String[0];
+        List<String> in = new ArrayList<String>();
+        for (JsonElement arg : args.getAsJsonArray())
+            in.add(arg.getAsString());
+
+        OptionParser parser = new OptionParser();
+        List<OptionSpec<String>> values = Arrays.asList(
+                parser.acceptsAll(Arrays.asList("define", "D")).withRequiredArg(),
+                parser.acceptsAll(Arrays.asList("undefine", "U")).withRequiredArg(),
+                parser.accepts("include").withRequiredArg(),
+                parser.acceptsAll(Arrays.asList("incdir", "I")).withRequiredArg(),
+                parser.accepts("iquote").withRequiredArg(),
+                parser.acceptsAll(Arrays.asList("warning", "W")).withRequiredArg());
+        List<OptionSpec<Void>> flags = Arrays.asList(
+                parser.accepts("debug"),
+                parser.acceptsAll(Arrays.asList("no-warnings", "w")));
+        OptionSpec<String> inputs = parser.nonOptions();
+        OptionSet options;
+        try {
+            options = parser.parse(in.toArray(new String[in.size()]));
+        } catch (OptionException e) {
+            throw new LexerException("Unsupported args: " + e.getMessage());
+        }
+
+        /* Full names, so that Main cannot take one for an abbreviation of another. */
+        List<String> out = new ArrayList<String>();
+        for (OptionSpec<String> spec : values)
+            for (String value : options.valuesOf(spec)) {
+                out.add("--" + name(spec));
+                out.add(value);
+            }
+        for (OptionSpec<Void> spec : flags)
+            if (options.has(spec))
+                out.add("--" + name(spec));
+        out.add("--");
+        out.addAll(options.valuesOf(inputs));
+        return out.toArray(new String[out.size()]);
+    }
+
+    /* The long name of an option. */
+    @Nonnull
+    private static String name(@Nonnull OptionSpec<?> spec) {
+        for (String option : spec.options())
+            if (option.length() > 1)
+                return option;
+        throw new IllegalStateException("No long name for " + spec);
+    }
+
+    @Nonnull
+    private Main.Result forward(@Nonnull JsonObject request) throws Exception {
+        JsonElement source = request.get("source");
+        Main.Result result = Main.preprocess(args(request),
+                (source == null || source.isJsonNull()) ? "" : source.getAsString(),
+                tokenCache);
+        if (result == null)
+            throw new LexerException("Preprocessor failed");
+        return result;
+    }
+
+    @Nonnull
+    private static String text(@Nonnull Iterable<TokenS> tokens) {
+        StringBuilder buf = new StringBuilder();
+        for (TokenS tok : tokens)
+            buf.append(tok.token.getText());
+        return buf.toString();
+    }
+
+    /* Builds the changes for Backward, in the same form as Main.testBackward. */
+    @Nonnull
+    private static List<PSequence<TokenS>> changes(@Nonnull Main.Result result, @Nonnull JsonArray changed)
+            throws LexerException {
+        if (changed.size() != result.produced.size())
+            throw new LexerException("Expected " + result.produced.size()
+                    + " changes, one per produced token, not " + changed.size());
+        List<PSequence<TokenS>> changes = new ArrayList<PSequence<TokenS>>(changed.size());
+        for (int i = 0; i < changed.size(); i++) {
+            TokenS original = result.produced.get(i);
+            JsonElement change = changed.get(i);
+            if (change.isJsonNull()) {
+                changes.add(ConsPStack.singleton(original));
+            } else {
+                PVector<TokenS> seq = Empty.vector();
+                for (JsonElement e : change.getAsJsonArray()) {
+                    String text = e.getAsString();
+                    Token token = new Token(TokenType.findTokenType(text), original.token.getFile(),
+                            original.token.getLine(), original.token.getColumn(), text);
+                    seq = seq.plus(new TokenS(token, Empty.<String>bag()));
+                }
+                changes.add(seq);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Handles a single request on the calling thread.
+     *
+     * @return the response, which is never null.
+     */
+    @Nonnull
+    public JsonObject handle(@Nonnull JsonObject request) {
+        long start = System.nanoTime();
+        JsonObject response = new JsonObject();
+        JsonElement id = request.get("id");
+        if (id != null)
+            response.add("id", id);
+        String op = request.has("op") ? request.get("op").getAsString() : "preprocess";
+        try {
+            if ("preprocess".equals(op)) {
+                response.addProperty("output", text(forward(request).produced));
+            } else if ("forward".equals(op)) {
+                Main.Result result = forward(request);
+                response.addProperty("output", text(result.produced));
+                JsonArray produced = new JsonArray();
+                for (TokenS tok : result.produced)
+                    produced.add(tok.toJson());
+                response.add("produced", produced);
+                JsonArray actions = new JsonArray();
+                for (Action action : result.actions)
+                    actions.add(action.toJson());
+                response.add("actions", actions);
+            } else if ("backward".equals(op)) {
+                Main.Result result = forward(request);
+                JsonElement changed = request.get("changes");
+                if (changed == null || !changed.isJsonArray())
+                    throw new LexerException("Backward needs an array of changes");
+                List<PSequence<TokenS>> original = new Backward(result.preprocessor)
+                        .backward(changes(result, changed.getAsJsonArray()), result.actions);
+                if (original == null)
+                    throw new LexerException("Failed to backward");
+                response.addProperty("original", text(Backward.flatten(original)));
+            } else if ("stats".equals(op)) {
+                for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet())
+                    response.add(e.getKey(), e.getValue().toJson());
+                TokenCache cache = tokenCache;
+                if (cache != null) {
+                    JsonObject stats = new JsonObject();
+                    stats.addProperty("files", cache.size());
+                    stats.addProperty("hits", cache.getHits());
+                    stats.addProperty("misses", cache.getMisses());
+                    response.add("cache", stats);
+                }
+            } else if ("shutdown".equals(op)) {
+                shutdown = true;
+                response.add("shutdown", new JsonPrimitive(true));
+            } else {
+                throw new LexerException("Unknown op " + op);
+            }
+        } catch (Exception e) {
+            LOG.debug("Request failed: " + request, e);
+            response.addProperty("error", String.valueOf(e.getMessage()));
+        }
+        getHistogram(op).record(System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Reads requests until the end of the input or a "shutdown"
+     * request, and writes each response as soon as it is ready.
+     *
+     * Returns once every request read has been answered.
+     */
+    public void serve(@Nonnull InputStream in, @Nonnull OutputStream out)
+            throws IOException {
+        serve(in, out, null);
+    }
+
+    /* As serve(), but stops at the first request without the token, if there is one. */
+    private void serve(@Nonnull InputStream in, @Nonnull OutputStream out, @CheckForNull String token)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        final Phaser pending = new Phaser(1);
+        JsonParser parser = new JsonParser();
+        String line;
+        while (!shutdown && (line = reader.readLine()) != null) {
+            if (line.trim().isEmpty())
+                continue;
+            JsonElement request;
+            try {
+                request = parser.parse(line);
+            } catch (RuntimeException e) {
+                request = JsonNull.INSTANCE;
+            }
+            if (!request.isJsonObject()) {
+                JsonObject response = new JsonObject();
+                response.addProperty("error", "Malformed request");
+                write(writer, response);
+                continue;
+            }
+            final JsonObject r = request.getAsJsonObject();
+            if (token != null && !isToken(r, token)) {
+                JsonObject response = new JsonObject();
+                response.addProperty("error", "Bad token");
+                write(writer, response);
+                break;
+            }
+            /* Shutdown is handled inline, so that nothing after it is read. */
+            if (r.has("op") && "shutdown".equals(r.get("op").getAsString())) {
+                write(writer, handle(r));
+                break;
+            }
+            pending.register();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(writer, handle(r));
+                    } catch (IOException e) {
+                        LOG.warn("Failed to write response", e);
+                    } finally {
+                        pending.arriveAndDeregister();
+                    }
+                }
+            });
+        }
+        pending.arriveAndAwaitAdvance();
+        writer.flush();
+    }
+
+    private static void write(@Nonnull Writer writer, @Nonnull JsonObject response)
+            throws IOException {
+        String text = response.toString();
+        synchronized (writer) {
+            writer.write(text);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    /**
+     * Accepts connections on the loopback interface, and serves each
+     * until a "shutdown" request arrives on any of them.
+     *
+     * @throws IllegalStateException if no token has been set.
+     */
+    public void serve(@Nonnegative int port) throws IOException {
+        final String token = this.token;
+        if (token == null)
+            throw new IllegalStateException("A token is needed to listen on a port");
+        final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        LOG.info("Listening on " + server.getLocalSocketAddress());
+        try {
+            while (!shutdown) {
+                final Socket socket = server.accept();
+                new Thread("cpp-daemon-" + socket.getPort()) {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket.getInputStream(), socket.getOutputStream(), token);
+                        } catch (IOException e) {
+                            LOG.warn("Connection failed", e);
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                LOG.debug("Failed to close connection", e);
+                            }
+                            if (shutdown) {
+                                try {
+                                    server.close();
+                                } catch (IOException e) {
+                                    LOG.debug("Failed to close server", e);
+                                }
+                            }
+                        }
+                    }
+                }.start();
+            }
+        } catch (IOException e) {
+            /* The server socket is closed by shutdown. */
+            if (!shutdown)
+                throw e;
+        } finally {
+            server.close();
+        }
+    }
+
+    /** Stops the worker threads, waiting for running requests. */
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        OptionSpec<?> helpOption = parser.accepts("help",
+                "Displays command-line help.")
+                .forHelp();
+        OptionSpec<Integer> threadsOption = parser.acceptsAll(Arrays.asList("threads", "j"),
+                "Sets the number of worker threads, without virtual threads.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n")
+                .defaultsTo(Runtime.getRuntime().availableProcessors());
+        OptionSpec<Integer> portOption = parser.accepts("port",
+                "Listens on the given loopback port instead of reading standard input. "
+                + "Requests must carry the token printed to standard error.")
+                .withRequiredArg().ofType(Integer.class).describedAs("port");
+
+        OptionSet options = parser.parse(args);
+        if (options.has(helpOption)) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+
+        Daemon daemon = new Daemon(options.valueOf(threadsOption));
+        try {
+            if (options.has(portOption)) {
+                daemon.setToken(newToken());
+                System.err.println("Token: " + daemon.getToken());
+                daemon.serve(options.valueOf(portOption));
+            } else {
+                daemon.serve(System.in, System.out);
+            }
+        } finally {
+            daemon.close();
+        }
+        for (Map.Entry<String, LatencyHistogram> e : daemon.histograms.entrySet())
+            System.err.println(e.getKey() + ": " + e.getValue());
+    }
+}
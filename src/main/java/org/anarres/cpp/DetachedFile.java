@@ -0,0 +1,51 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import javax.annotation.Nonnull;
+
+/**
+ * A File which names content that is not on disk.
+ *
+ * The {@link TokenCache} keys on the path, length and modification
+ * time of a {@link FileLexerSource}'s File; this supplies the latter
+ * two from the virtual filesystem rather than from a stat.
+ */
+/* pp */ class DetachedFile extends File {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long length;
+    private final long lastModified;
+
+    /* pp */ DetachedFile(@Nonnull String path, long length, long lastModified) {
+        super(path);
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+}
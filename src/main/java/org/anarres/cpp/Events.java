@@ -0,0 +1,103 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Emits Flight Recorder events, where the runtime has Flight Recorder.
+ *
+ * jdk.jfr is missing from Java 8 before update 262, and from images
+ * built without that module. This class never names a jdk.jfr type,
+ * so it loads everywhere; {@link JfrEvents}, which does, is used only
+ * once jdk.jfr.Event is known to load. Each begin method returns a
+ * handle for the matching commit method, or null if the event is not
+ * being recorded, in which case the commit does nothing.
+ */
+/* pp */ final class Events {
+
+    /* Outcomes of a ForwardCheck. */
+    /* pp */ static final String MATCHED = "matched";
+    /* pp */ static final String DRAINED = "drained";
+    /* pp */ static final String MISMATCHED = "mismatched";
+
+    private static final boolean AVAILABLE = available();
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Events.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @CheckForNull
+    /* pp */ static Object beginMacro() {
+        return AVAILABLE ? JfrEvents.beginMacro() : null;
+    }
+
+    /* pp */ static void commitMacro(@CheckForNull Object event,
+            @Nonnull String macro, int arguments, int produced) {
+        if (event != null)
+            JfrEvents.commitMacro(event, macro, arguments, produced);
+    }
+
+    @CheckForNull
+    /* pp */ static Object beginInclude(@Nonnull String name) {
+        return AVAILABLE ? JfrEvents.beginInclude(name) : null;
+    }
+
+    /* pp */ static void resolveInclude(@CheckForNull Object event,
+            @Nonnull String path, boolean guarded, boolean cacheHit) {
+        if (event != null)
+            JfrEvents.resolveInclude(event, path, guarded, cacheHit);
+    }
+
+    /* pp */ static void commitInclude(@CheckForNull Object event) {
+        if (event != null)
+            JfrEvents.commitInclude(event);
+    }
+
+    @CheckForNull
+    /* pp */ static Object beginStrategy() {
+        return AVAILABLE ? JfrEvents.beginStrategy() : null;
+    }
+
+    /* pp */ static void commitStrategy(@CheckForNull Object event,
+            int action, @Nonnull String strategy, boolean success) {
+        if (event != null)
+            JfrEvents.commitStrategy(event, action, strategy, success);
+    }
+
+    @CheckForNull
+    /* pp */ static Object beginForward() {
+        return AVAILABLE ? JfrEvents.beginForward() : null;
+    }
+
+    /* pp */ static void commitForward(@CheckForNull Object event,
+            int steps, @CheckForNull String outcome) {
+        if (event != null)
+            JfrEvents.commitForward(event, steps, outcome);
+    }
+
+    private Events() {
+    }
+}
@@ -50,6 +50,12 @@ public class FileLexerSource extends InputLexerSource {
         this.path = path;
     }
 
+    /* pp */ FileLexerSource(@Nonnull JoinReader reader, @Nonnull File file, @Nonnull String path) {
+        super(reader);
+        this.file = file;
+        this.path = path;
+    }
+
     public FileLexerSource(@Nonnull File file, @Nonnull String path)
             throws IOException {
         this(file, Charset.defaultCharset(), path);
@@ -101,6 +107,7 @@ public class FileLexerSource extends InputLexerSource {
     }
 
     public List<Token> producedTokens;
+    /* pp */ IncludeGuard guard;
 
     @Override
     public TokenS token() throws IOException, LexerException {
@@ -110,4 +117,13 @@ public class FileLexerSource extends InputLexerSource {
         }
         return tokenS;
     }
+
+    @Override
+    /* pp */ TokenS skipped() throws IOException, LexerException {
+        TokenS tokenS = super.skipped();
+        if (producedTokens != null && tokenS != null) {
+            producedTokens.add(tokenS.token);
+        }
+        return tokenS;
+    }
 }
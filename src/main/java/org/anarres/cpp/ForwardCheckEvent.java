@@ -0,0 +1,41 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for running a candidate forward in
+ * {@link Backward}, to check that it preprocesses as required.
+ */
+@Name("org.anarres.cpp.ForwardCheck")
+@Label("Forward Check")
+@Category("C Preprocessor")
+@Description("A candidate run forward by the backward transformation")
+/* pp */ class ForwardCheckEvent extends Event {
+
+    @Label("Steps")
+    @Description("The number of tokens produced")
+    /* pp */ int steps;
+    @Label("Outcome")
+    @Description("One of matched, drained or mismatched")
+    /* pp */ String outcome;
+}
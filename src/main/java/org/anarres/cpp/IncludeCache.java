@@ -0,0 +1,260 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A cache of include resolutions, which may be shared between
+ * {@link Preprocessor} instances, including on different threads.
+ *
+ * An #include is resolved by testing each directory on the include
+ * paths in turn, which costs a stat for each directory which does
+ * not hold the file. This cache remembers which candidate was found,
+ * or that none was, keyed by the name, the kind of include, the
+ * including directory and the include paths.
+ *
+ * Entries are invalidated by {@link #clear()}, or when the
+ * modification time of any directory which was searched has changed.
+ * Directories are checked at most once per check interval. A
+ * directory can be checked if it is a {@link File}, or if it belongs
+ * to a {@link MemoryFileSystem}, whose version changes whenever a
+ * file is put or removed, or to an {@link ArchiveFileSystem}, which
+ * never changes. A resolution which searched any other directory is
+ * not cached. All the Preprocessors sharing a cache must use the
+ * same {@link VirtualFileSystem}.
+ *
+ * @see Preprocessor#setIncludeCache(IncludeCache)
+ */
+public class IncludeCache {
+
+    /** The default check interval, in milliseconds. */
+    public static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+    /* pp */ static final class Key {
+
+        private final String dir;
+        private final String name;
+        private final boolean quoted;
+        private final boolean next;
+        private final List<String> quotepath;
+        private final List<String> frameworkspath;
+        private final List<String> syspath;
+        private final int hash;
+
+        /* pp */ Key(@CheckForNull String dir, @Nonnull String name, boolean quoted, boolean next,
+                @Nonnull List<String> quotepath, @Nonnull List<String> frameworkspath, @Nonnull List<String> syspath) {
+            this.dir = dir;
+            this.name = name;
+            this.quoted = quoted;
+            this.next = next;
+            this.quotepath = quotepath;
+            this.frameworkspath = frameworkspath;
+            this.syspath = syspath;
+            int h = name.hashCode();
+            h = 31 * h + (dir == null ? 0 : dir.hashCode());
+            h = 31 * h + (quoted ? 1 : 0) + (next ? 2 : 0);
+            h = 31 * h + quotepath.hashCode();
+            h = 31 * h + frameworkspath.hashCode();
+            h = 31 * h + syspath.hashCode();
+            this.hash = h;
+        }
+
+        /* Copies the paths, which the Preprocessor may yet modify. */
+        @Nonnull
+        private Key snapshot() {
+            return new Key(dir, name, quoted, next,
+                    new ArrayList<String>(quotepath),
+                    new ArrayList<String>(frameworkspath),
+                    new ArrayList<String>(syspath));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return hash == k.hash
+                    && quoted == k.quoted
+                    && next == k.next
+                    && name.equals(k.name)
+                    && (dir == null ? k.dir == null : dir.equals(k.dir))
+                    && syspath.equals(k.syspath)
+                    && quotepath.equals(k.quotepath)
+                    && frameworkspath.equals(k.frameworkspath);
+        }
+    }
+
+    /**
+     * A directory which can say whether it has changed, other than
+     * by being a {@link File}.
+     */
+    /* pp */ interface Versioned {
+
+        /**
+         * Adds stamps which change whenever the contents of this
+         * directory may have changed.
+         *
+         * @return false if the directory cannot be checked.
+         */
+        boolean addVersions(@Nonnull List<Long> versions);
+    }
+
+    /**
+     * Adds stamps for the given directory.
+     *
+     * @return false if the directory cannot be checked.
+     */
+    /* pp */ static boolean addVersions(@CheckForNull VirtualFile dir, @Nonnull List<Long> versions) {
+        /* A relative File has no parent, and never had one to check. */
+        if (dir == null)
+            return true;
+        if (dir instanceof File) {
+            versions.add(((File) dir).lastModified());
+            return true;
+        }
+        if (dir instanceof Versioned)
+            return ((Versioned) dir).addVersions(versions);
+        return false;
+    }
+
+    /* Returns the stamps of all the directories, or null if any cannot be checked. */
+    @CheckForNull
+    private static long[] versions(@Nonnull VirtualFile[] dirs) {
+        List<Long> versions = new ArrayList<Long>(dirs.length);
+        for (VirtualFile dir : dirs)
+            if (!addVersions(dir, versions))
+                return null;
+        long[] out = new long[versions.size()];
+        for (int i = 0; i < out.length; i++)
+            out[i] = versions.get(i);
+        return out;
+    }
+
+    private static final class Entry {
+
+        /* The index of the candidate found, or -1 if none. */
+        private final int index;
+        private final VirtualFile[] dirs;
+        private final long[] versions;
+        private volatile long checked;
+
+        Entry(int index, @Nonnull VirtualFile[] dirs, @Nonnull long[] versions, long now) {
+            this.index = index;
+            this.dirs = dirs;
+            this.versions = versions;
+            this.checked = now;
+        }
+
+        boolean isValid(long now, long interval) {
+            if (interval < 0 || now - checked < interval)
+                return true;
+            if (!Arrays.equals(versions, versions(dirs)))
+                return false;
+            checked = now;
+            return true;
+        }
+    }
+
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long interval = DEFAULT_CHECK_INTERVAL;
+
+    /**
+     * Sets how often, in milliseconds, the directories behind an
+     * entry are checked for changes. Zero checks on every lookup;
+     * a negative interval never checks.
+     */
+    public void setCheckInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Looks up a resolution.
+     *
+     * @return the index of the candidate found, -1 if none was, or
+     *	null if the resolution is not cached.
+     */
+    @CheckForNull
+    /* pp */ Integer get(@Nonnull Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isValid(System.currentTimeMillis(), interval)) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.index;
+    }
+
+    /**
+     * Records a resolution, unless a directory which was searched
+     * cannot be checked for changes.
+     *
+     * @param index the index of the candidate found, or -1 if none was.
+     * @param candidates the candidates in the order they are tried.
+     */
+    /* pp */ void put(@Nonnull Key key, int index, @Nonnull List<VirtualFile> candidates) {
+        int count = (index < 0) ? candidates.size() : index + 1;
+        VirtualFile[] dirs = new VirtualFile[count];
+        for (int i = 0; i < count; i++)
+            dirs[i] = candidates.get(i).getParentFile();
+        long[] versions = versions(dirs);
+        if (versions == null)
+            return;
+        entries.put(key.snapshot(), new Entry(index, dirs, versions, System.currentTimeMillis()));
+    }
+
+    /** Discards all entries. */
+    public void clear() {
+        entries.clear();
+    }
+
+    /** Returns the number of cached resolutions. */
+    @Nonnegative
+    public int size() {
+        return entries.size();
+    }
+
+    @Nonnegative
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Nonnegative
+    public long getMisses() {
+        return misses.get();
+    }
+}
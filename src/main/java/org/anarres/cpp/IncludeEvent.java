@@ -0,0 +1,49 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for an #include directive.
+ *
+ * The duration covers resolving and opening the file, and lexing it
+ * if it goes into the {@link TokenCache}. An included file is
+ * otherwise lexed as it is read, after this event.
+ */
+@Name("org.anarres.cpp.Include")
+@Label("Include")
+@Category("C Preprocessor")
+@Description("Resolution of an #include directive")
+/* pp */ class IncludeEvent extends Event {
+
+    @Label("Name")
+    /* pp */ String name;
+    @Label("Path")
+    @Description("The file included, or null if none was found")
+    /* pp */ String path;
+    @Label("Guarded")
+    @Description("The file was skipped because of its include guard")
+    /* pp */ boolean guarded;
+    @Label("Cache Hit")
+    @Description("The tokens of the file came from the token cache")
+    /* pp */ boolean cacheHit;
+}
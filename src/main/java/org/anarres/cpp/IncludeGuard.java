@@ -0,0 +1,152 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Watches an included file for the multiple-include optimisation.
+ *
+ * A file is guarded if everything in it, other than whitespace and
+ * comments, lies within a single conditional which is skipped once
+ * some macro is defined. That is, the file has the form
+ * <pre>
+ * #ifndef X		(or #if !defined X)
+ * ...
+ * #endif
+ * </pre>
+ * with no #else or #elif at the outer level. Including it again
+ * while X is defined can then have no effect, and the file need
+ * not be opened.
+ */
+/* pp */ class IncludeGuard {
+
+    private final String path;
+    private final int depth;
+    @CheckForNull
+    private String macro = null;
+    private boolean valid = true;
+
+    /**
+     * @param path the path by which the file was included.
+     * @param depth the depth of the conditional stack outside the file.
+     */
+    public IncludeGuard(@Nonnull String path, int depth) {
+        this.path = path;
+        this.depth = depth;
+    }
+
+    @Nonnull
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Notes a token which is not part of a directive.
+     *
+     * @param depth the current depth of the conditional stack.
+     */
+    public void token(int depth) {
+        if (depth == this.depth)
+            valid = false;
+    }
+
+    /**
+     * Notes a directive other than one which opens a conditional.
+     *
+     * @param depth the current depth of the conditional stack.
+     */
+    public void directive(@Nonnull PreprocessorCommand command, int depth) {
+        switch (command) {
+            case PP_IF:
+            case PP_IFDEF:
+            case PP_IFNDEF:
+            case PP_ENDIF:
+                break;
+            case PP_ELIF:
+            case PP_ELSE:
+                if (depth == this.depth + 1)
+                    valid = false;
+                break;
+            default:
+                token(depth);
+                break;
+        }
+    }
+
+    /**
+     * Notes a conditional being opened.
+     *
+     * @param depth the depth of the conditional stack outside the new conditional.
+     * @param macro the macro whose definition skips the conditional, if it has that form.
+     */
+    public void conditional(int depth, @CheckForNull String macro) {
+        if (depth != this.depth)
+            return;
+        if (this.macro != null || macro == null)
+            valid = false;
+        else
+            this.macro = macro;
+    }
+
+    /**
+     * Returns the guard macro, once the end of the file is reached.
+     *
+     * @param depth the current depth of the conditional stack.
+     * @return the guard macro, or null if the file is not guarded.
+     */
+    @CheckForNull
+    public String getMacro(int depth) {
+        if (!valid || depth != this.depth)
+            return null;
+        return macro;
+    }
+
+    /**
+     * Returns the macro tested by a condition of the form
+     * <code>!defined X</code> or <code>!defined(X)</code>.
+     *
+     * @param text the non-white tokens of the condition.
+     * @return the macro, or null if the condition does not have that form.
+     */
+    @CheckForNull
+    public static String getMacro(@Nonnull List<String> text) {
+        if (text.size() < 3
+                || !"!".equals(text.get(0))
+                || !"defined".equals(text.get(1)))
+            return null;
+        String name;
+        if (text.size() == 3)
+            name = text.get(2);
+        else if (text.size() == 5
+                && "(".equals(text.get(2))
+                && ")".equals(text.get(4)))
+            name = text.get(3);
+        else
+            return null;
+        if (!Character.isJavaIdentifierStart(name.charAt(0)))
+            return null;
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return "IncludeGuard(" + path + ", " + macro + ", " + valid + ")";
+    }
+}
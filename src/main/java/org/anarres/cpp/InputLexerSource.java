@@ -49,6 +49,10 @@ public class InputLexerSource extends LexerSource {
         super(toBufferedReader(input), true);
     }
 
+    /* pp */ InputLexerSource(@Nonnull JoinReader reader) {
+        super(reader, true);
+    }
+
     @Override
     public String getPath() {
         return "<standard-input>";
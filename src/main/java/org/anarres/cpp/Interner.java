@@ -0,0 +1,101 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A table of canonical Strings for identifiers and whitespace.
+ *
+ * Lexing every occurrence of an identifier to the same String
+ * instance means that {@link String#equals(Object)} succeeds on
+ * the identity check, and the String's cached hash is computed
+ * only once, both of which make macro lookup and token comparison
+ * cheap. A lookup which hits does not allocate.
+ *
+ * This class is not thread-safe; each Preprocessor has its own.
+ */
+/* pp */ class Interner {
+
+    /* Beyond this, new texts are returned without being interned. */
+    private static final int MAX_SIZE = 1 << 20;
+
+    private String[] table = new String[1024];
+    private int size = 0;
+
+    /** Returns the number of Strings interned. */
+    @Nonnegative
+    public int size() {
+        return size;
+    }
+
+    /* Spreads the String hash, whose low bits are poor for short texts. */
+    private static int index(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static boolean matches(@Nonnull String s, @Nonnull CharSequence text) {
+        int len = text.length();
+        if (s.length() != len)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (s.charAt(i) != text.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns the canonical String with the same characters as the
+     * given text.
+     */
+    @Nonnull
+    public String intern(@Nonnull CharSequence text) {
+        /* The same hash as String.hashCode(), which is cached. */
+        int hash = 0;
+        for (int i = 0; i < text.length(); i++)
+            hash = 31 * hash + text.charAt(i);
+        int mask = table.length - 1;
+        int i = index(hash, mask);
+        for (String s = table[i]; s != null; s = table[i]) {
+            if (s.hashCode() == hash && matches(s, text))
+                return s;
+            i = (i + 1) & mask;
+        }
+        String s = text.toString();
+        if (size < MAX_SIZE) {
+            table[i] = s;
+            if (++size * 2 > table.length)
+                grow();
+        }
+        return s;
+    }
+
+    private void grow() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for (String s : old) {
+            if (s == null)
+                continue;
+            int i = index(s.hashCode(), mask);
+            while (table[i] != null)
+                i = (i + 1) & mask;
+            table[i] = s;
+        }
+    }
+}
@@ -18,12 +18,24 @@ package org.anarres.cpp;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
 
 /**
  * A virtual filesystem implementation using java.io.
  */
 public class JavaFileSystem implements VirtualFileSystem {
 
+    private boolean mapped = false;
+
+    /**
+     * Sets whether files are lexed by memory-mapping them.
+     *
+     * @see MappedFileLexerSource
+     */
+    public void setMemoryMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
     @Override
     public VirtualFile getFile(String path) {
         return new JavaFile(path);
@@ -34,7 +46,7 @@ public class JavaFileSystem implements VirtualFileSystem {
         return new JavaFile(dir, name);
     }
 
-    private class JavaFile extends File implements VirtualFile {
+    private class JavaFile extends File implements VirtualFile, TokenCache.Backed {
 
         public JavaFile(String path) {
             super(path);
@@ -74,8 +86,15 @@ public class JavaFileSystem implements VirtualFileSystem {
             return new JavaFile(this, name);
         }
 
+        @Override
+        public File getBackingFile() {
+            return this;
+        }
+
         @Override
         public Source getSource() throws IOException {
+            if (mapped)
+                return new MappedFileLexerSource(this, Charset.defaultCharset());
             return new FileLexerSource(this);
         }
 
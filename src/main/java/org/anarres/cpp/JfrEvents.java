@@ -0,0 +1,122 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jdk.jfr.EventType;
+
+/**
+ * The Flight Recorder side of {@link Events}.
+ *
+ * This class must be loaded only when jdk.jfr is present.
+ *
+ * Each begin method asks the cached {@link EventType} whether the
+ * event is enabled, so nothing is allocated unless a recording
+ * wants it.
+ */
+/* pp */ final class JfrEvents {
+
+    private static final EventType MACRO = EventType.getEventType(MacroExpansionEvent.class);
+    private static final EventType INCLUDE = EventType.getEventType(IncludeEvent.class);
+    private static final EventType STRATEGY = EventType.getEventType(BackwardStrategyEvent.class);
+    private static final EventType FORWARD = EventType.getEventType(ForwardCheckEvent.class);
+
+    @CheckForNull
+    /* pp */ static Object beginMacro() {
+        if (!MACRO.isEnabled())
+            return null;
+        MacroExpansionEvent event = new MacroExpansionEvent();
+        event.begin();
+        return event;
+    }
+
+    /* pp */ static void commitMacro(@Nonnull Object e,
+            @Nonnull String macro, int arguments, int produced) {
+        MacroExpansionEvent event = (MacroExpansionEvent) e;
+        if (event.shouldCommit()) {
+            event.macro = macro;
+            event.arguments = arguments;
+            event.produced = produced;
+            event.commit();
+        }
+    }
+
+    @CheckForNull
+    /* pp */ static Object beginInclude(@Nonnull String name) {
+        if (!INCLUDE.isEnabled())
+            return null;
+        IncludeEvent event = new IncludeEvent();
+        event.name = name;
+        event.begin();
+        return event;
+    }
+
+    /* pp */ static void resolveInclude(@Nonnull Object e,
+            @Nonnull String path, boolean guarded, boolean cacheHit) {
+        IncludeEvent event = (IncludeEvent) e;
+        event.path = path;
+        event.guarded = guarded;
+        event.cacheHit = cacheHit;
+    }
+
+    /* pp */ static void commitInclude(@Nonnull Object e) {
+        ((IncludeEvent) e).commit();
+    }
+
+    @CheckForNull
+    /* pp */ static Object beginStrategy() {
+        if (!STRATEGY.isEnabled())
+            return null;
+        BackwardStrategyEvent event = new BackwardStrategyEvent();
+        event.begin();
+        return event;
+    }
+
+    /* pp */ static void commitStrategy(@Nonnull Object e,
+            int action, @Nonnull String strategy, boolean success) {
+        BackwardStrategyEvent event = (BackwardStrategyEvent) e;
+        if (event.shouldCommit()) {
+            event.action = action;
+            event.strategy = strategy;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    @CheckForNull
+    /* pp */ static Object beginForward() {
+        if (!FORWARD.isEnabled())
+            return null;
+        ForwardCheckEvent event = new ForwardCheckEvent();
+        event.begin();
+        return event;
+    }
+
+    /* pp */ static void commitForward(@Nonnull Object e,
+            int steps, @CheckForNull String outcome) {
+        ForwardCheckEvent event = (ForwardCheckEvent) e;
+        if (event.shouldCommit()) {
+            event.steps = steps;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    private JfrEvents() {
+    }
+}
@@ -19,10 +19,20 @@ package org.anarres.cpp;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Reader;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
 
 /* pp */ class JoinReader /* extends Reader */ implements Closeable {
 
+    private static final int BUFSIZE = 8192;
+
+    @CheckForNull
     private final Reader in;
+    /* The window of input not yet read, from pos to limit. */
+    private final char[] buf;
+    private int pos;
+    private int limit;
 
     private PreprocessorListener listener;
     private LexerSource source;
@@ -35,7 +45,26 @@ import java.io.Reader;
     private int uptr;
 
     public JoinReader(Reader in, boolean trigraphs) {
+        this(in, new char[BUFSIZE], 0, trigraphs);
+    }
+
+    /**
+     * Creates a JoinReader over the given characters, which must not
+     * be modified while they are being read.
+     */
+    public JoinReader(@Nonnull char[] text, boolean trigraphs) {
+        this(text, text.length, trigraphs);
+    }
+
+    /* pp */ JoinReader(@Nonnull char[] text, int length, boolean trigraphs) {
+        this(null, text, length, trigraphs);
+    }
+
+    private JoinReader(@CheckForNull Reader in, @Nonnull char[] buf, int limit, boolean trigraphs) {
         this.in = in;
+        this.buf = buf;
+        this.pos = 0;
+        this.limit = limit;
         this.trigraphs = trigraphs;
         this.newlines = 0;
         this.flushnl = false;
@@ -59,10 +88,55 @@ import java.io.Reader;
                 pp.getWarning(Warning.TRIGRAPHS));
     }
 
+    /* Refills the window from the Reader, returning false at EOF. */
+    private boolean fill() throws IOException {
+        if (in == null)
+            return false;
+        for (;;) {
+            int n = in.read(buf, 0, buf.length);
+            if (n < 0)
+                return false;
+            if (n > 0) {
+                pos = 0;
+                limit = n;
+                return true;
+            }
+        }
+    }
+
     private int __read() throws IOException {
         if (uptr > 0)
             return unget[--uptr];
-        return in.read();
+        if (pos == limit && !fill())
+            return -1;
+        return buf[pos++];
+    }
+
+    /**
+     * Appends to text the characters which follow in the window, up
+     * to the first which is not ASCII or not in the given class, and
+     * returns how many there were.
+     *
+     * The class must not contain a backslash, a question mark or a
+     * line separator, so that the characters need no splice, trigraph
+     * or newline handling. Nothing is appended if characters have
+     * been pushed back or newlines are pending.
+     */
+    @Nonnegative
+    /* pp */ int span(@Nonnull StringBuilder text, @Nonnull boolean[] cls) {
+        if (uptr > 0 || (flushnl && newlines > 0))
+            return 0;
+        int start = pos;
+        int i = start;
+        while (i < limit) {
+            char c = buf[i];
+            if (c >= cls.length || !cls[c])
+                break;
+            i++;
+        }
+        text.append(buf, start, i - start);
+        pos = i;
+        return i - start;
     }
 
     private void _unread(int c) {
@@ -192,7 +266,8 @@ import java.io.Reader;
     @Override
     public void close()
             throws IOException {
-        in.close();
+        if (in != null)
+            in.close();
     }
 
     @Override
@@ -0,0 +1,116 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import com.google.gson.JsonObject;
+
+/**
+ * A lock-free histogram of latencies.
+ *
+ * Samples are counted in power-of-two buckets of microseconds, so
+ * percentiles are accurate to within a factor of two, which is
+ * enough to tell a warm request from a cold one.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /* Bucket i holds samples below 2^i microseconds. */
+    private static int bucket(long micros) {
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    /** Records one sample, in nanoseconds. */
+    public void record(@Nonnegative long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+        buckets.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        for (;;) {
+            long m = max.get();
+            if (micros <= m || max.compareAndSet(m, micros))
+                break;
+        }
+    }
+
+    @Nonnegative
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Returns the mean latency in microseconds. */
+    public double getMeanMicros() {
+        long n = count.get();
+        return (n == 0) ? 0 : (double) total.get() / n;
+    }
+
+    /** Returns the largest latency in microseconds. */
+    @Nonnegative
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Returns an upper bound, in microseconds, on the given
+     * fraction of the samples.
+     *
+     * @param fraction a value between 0 and 1, e.g. 0.99.
+     */
+    @Nonnegative
+    public long getPercentileMicros(double fraction) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(1L << i, getMaxMicros());
+        }
+        return getMaxMicros();
+    }
+
+    @Nonnull
+    public JsonObject toJson() {
+        JsonObject result = new JsonObject();
+        result.addProperty("count", getCount());
+        result.addProperty("mean_us", getMeanMicros());
+        result.addProperty("p50_us", getPercentileMicros(0.50));
+        result.addProperty("p90_us", getPercentileMicros(0.90));
+        result.addProperty("p99_us", getPercentileMicros(0.99));
+        result.addProperty("max_us", getMaxMicros());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d samples, mean %.1f us, p50 %d us, p99 %d us, max %d us",
+                getCount(), getMeanMicros(), getPercentileMicros(0.50),
+                getPercentileMicros(0.99), getMaxMicros());
+    }
+}
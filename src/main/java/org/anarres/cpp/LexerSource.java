@@ -22,6 +22,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.Collections;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import static org.anarres.cpp.Token.*;
 
@@ -37,12 +38,45 @@ public class LexerSource extends Source {
 
     private static final boolean DEBUG = false;
 
+    /* ASCII classes of characters which read() may be bypassed for. */
+    private static final boolean[] IDENTIFIER_CHARS = new boolean[128];
+    private static final boolean[] WHITESPACE_CHARS = new boolean[128];
+    private static final boolean[] COMMENT_CHARS = new boolean[128];
+    private static final boolean[] STRING_CHARS = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++)
+            IDENTIFIER_CHARS[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++)
+            IDENTIFIER_CHARS[c] = true;
+        for (char c = '0'; c <= '9'; c++)
+            IDENTIFIER_CHARS[c] = true;
+        IDENTIFIER_CHARS['_'] = true;
+        IDENTIFIER_CHARS['$'] = true;
+
+        WHITESPACE_CHARS[' '] = true;
+        WHITESPACE_CHARS['\t'] = true;
+
+        for (char c = ' '; c < 0x7f; c++)
+            COMMENT_CHARS[c] = true;
+        COMMENT_CHARS['\t'] = true;
+        COMMENT_CHARS['\\'] = false;
+        COMMENT_CHARS['?'] = false;
+        System.arraycopy(COMMENT_CHARS, 0, STRING_CHARS, 0, 128);
+        COMMENT_CHARS['*'] = false;
+        STRING_CHARS['"'] = false;
+        STRING_CHARS['\''] = false;
+        STRING_CHARS['>'] = false;
+    }
+
     private JoinReader reader;
     private final boolean ppvalid;
     private boolean bol;
     private boolean include;
 
     private boolean digraphs;
+    @CheckForNull
+    private Interner interner;
 
     /* Unread. */
     private int u0, u1;
@@ -57,7 +91,16 @@ public class LexerSource extends Source {
      * false in StringLexerSource,
      * true in FileLexerSource */
     public LexerSource(Reader r, boolean ppvalid) {
-        this.reader = new JoinReader(r);
+        this(new JoinReader(r), ppvalid);
+    }
+
+    /* Lexes the given characters, without copying or buffering them. */
+    /* pp */ LexerSource(char[] text, boolean ppvalid) {
+        this(new JoinReader(text, false), ppvalid);
+    }
+
+    /* pp */ LexerSource(JoinReader reader, boolean ppvalid) {
+        this.reader = reader;
         this.ppvalid = ppvalid;
         this.bol = true;
         this.include = false;
@@ -76,6 +119,7 @@ public class LexerSource extends Source {
     /* pp */ void init(Preprocessor pp) {
         super.init(pp);
         this.digraphs = pp.getFeature(Feature.DIGRAPHS);
+        this.interner = pp.getInterner();
         this.reader.init(pp, this);
     }
 
@@ -233,6 +277,22 @@ public class LexerSource extends Source {
         return c;
     }
 
+    /*
+     * Appends the run of characters of the given class which follows,
+     * as if each had been returned by read(). The class contains no
+     * line separators, so only the column moves.
+     */
+    private int span(@Nonnull StringBuilder text, @Nonnull boolean[] cls) {
+        if (ucount != 0 || reader == null)
+            return 0;
+        int n = reader.span(text, cls);
+        if (n > 0) {
+            column += n;
+            cr = false;
+        }
+        return n;
+    }
+
     /* You can unget AT MOST one newline. */
     private void unread(int c)
             throws IOException {
@@ -285,6 +345,7 @@ public class LexerSource extends Source {
         int d;
         do {
             do {
+                span(text, COMMENT_CHARS);
                 d = read();
                 if (d == -1)
                     return new Token(INVALID, getPath(),-1,-1,text.toString(),
@@ -310,6 +371,7 @@ public class LexerSource extends Source {
         int d = read();
         while (!isLineSeparator(d)) {
             text.append((char) d);
+            span(text, COMMENT_CHARS);
             d = read();
         }
         unread(d);
@@ -458,6 +520,9 @@ public class LexerSource extends Source {
         StringBuilder buf = new StringBuilder();
 
         for (;;) {
+            int n = span(text, STRING_CHARS);
+            if (n > 0)
+                buf.append(text, text.length() - n, text.length());
             int c = read();
             if (c == close) {
                 break;
@@ -716,6 +781,14 @@ public class LexerSource extends Source {
         return tok;
     }
 
+    /* Returns the canonical instance of a text, if we have a Preprocessor. */
+    @Nonnull
+    private String intern(@Nonnull StringBuilder text) {
+        if (interner == null)
+            return text.toString();
+        return interner.intern(text);
+    }
+
     @Nonnull
     private Token identifier(int c)
             throws IOException,
@@ -724,6 +797,7 @@ public class LexerSource extends Source {
         int d;
         text.append((char) c);
         for (;;) {
+            span(text, IDENTIFIER_CHARS);
             d = read();
             if (Character.isIdentifierIgnorable(d))
 				; else if (Character.isJavaIdentifierPart(d))
@@ -732,7 +806,7 @@ public class LexerSource extends Source {
                 break;
         }
         unread(d);
-        return new Token(IDENTIFIER, getPath(), -1,-1,text.toString());
+        return new Token(IDENTIFIER, getPath(), -1,-1,intern(text));
     }
 
     @Nonnull
@@ -743,6 +817,7 @@ public class LexerSource extends Source {
         int d;
         text.append((char) c);
         for (;;) {
+            span(text, WHITESPACE_CHARS);
             d = read();
             if (ppvalid && isLineSeparator(d))	/* XXX Ugly. */
 
@@ -753,7 +828,7 @@ public class LexerSource extends Source {
                 break;
         }
         unread(d);
-        return new Token(WHITESPACE, getPath(), -1,-1,text.toString());
+        return new Token(WHITESPACE, getPath(), -1,-1,intern(text));
     }
 
     /* No token processed by cond() contains a newline. */
@@ -768,6 +843,126 @@ public class LexerSource extends Source {
         return new Token(no, getPath());
     }
 
+    /**
+     * Passes over the text of an inactive conditional block.
+     *
+     * Unlike {@link #token()}, this does not tokenize the input.
+     * It tracks only comments, string and character literals and the
+     * start of each line, and stops before the next '#' which begins
+     * a line. Everything passed over, including newlines, is returned
+     * as the text of a single SKIPPED token, so that the original
+     * text is still available to whoever records it.
+     *
+     * @return the skipped text, or null if this source is not at the
+     *	beginning of a line, or is already at a directive or at the end
+     *	of input.
+     */
+    @Override
+    @CheckForNull
+    /* pp */ TokenS skipped()
+            throws IOException,
+            LexerException {
+        if (!ppvalid || !bol)
+            return null;
+
+        int _l = line;
+        int _c = column;
+
+        StringBuilder text = new StringBuilder();
+        boolean start = true;
+        int c;
+        int d;
+
+        SCAN:
+        for (;;) {
+            c = read();
+            switch (c) {
+                case -1:
+                    break SCAN;
+                case '\n':
+                    text.append('\n');
+                    start = true;
+                    break;
+                case '#':
+                    if (start) {
+                        unread(c);
+                        break SCAN;
+                    }
+                    text.append('#');
+                    break;
+                case '/':
+                    text.append('/');
+                    d = read();
+                    if (d == '*') {
+                        /* Leaves start alone, as token() leaves bol. */
+                        text.append('*');
+                        d = read();
+                        for (;;) {
+                            if (d == -1)
+                                break SCAN;
+                            text.append((char) d);
+                            int e = read();
+                            if (d == '*' && e == '/') {
+                                text.append('/');
+                                break;
+                            }
+                            d = e;
+                        }
+                    } else if (d == '/') {
+                        text.append('/');
+                        d = read();
+                        while (!isLineSeparator(d)) {
+                            text.append((char) d);
+                            d = read();
+                        }
+                        unread(d);
+                        start = false;
+                    } else {
+                        unread(d);
+                        start = false;
+                    }
+                    break;
+                case '"':
+                case '\'':
+                    /* Ends at the close, or unterminated at the end of line. */
+                    text.append((char) c);
+                    for (;;) {
+                        d = read();
+                        if (isLineSeparator(d)) {
+                            unread(d);
+                            break;
+                        }
+                        text.append((char) d);
+                        if (d == c)
+                            break;
+                        if (d == '\\') {
+                            d = read();
+                            if (isLineSeparator(d)) {
+                                unread(d);
+                                break;
+                            }
+                            text.append((char) d);
+                        }
+                    }
+                    start = false;
+                    break;
+                default:
+                    text.append((char) c);
+                    if (!Character.isWhitespace(c))
+                        start = false;
+                    break;
+            }
+        }
+
+        bol = start;
+        if (text.length() == 0)
+            return null;
+        Token tok = new Token(SKIPPED, getPath(), _l, _c, text.toString());
+        if (DEBUG)
+            System.out.println("lx: Returning " + tok);
+        return new TokenS(tok, Empty.bag());
+    }
+
     @Override
     public TokenS token()
             throws IOException,
@@ -20,6 +20,7 @@ import javax.crypto.Mac;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import javax.annotation.CheckForNull;
 
 /**
  * A macro object.
@@ -39,6 +40,8 @@ public class Macro {
     private List<String> args;
     private boolean variadic;
     private List<Token> tokens;
+    private String file;
+    private int line;
 
     public Macro(Source source, String name) {
         //this.source = source;
@@ -46,6 +49,8 @@ public class Macro {
         this.args = null;
         this.variadic = false;
         this.tokens = new ArrayList<Token>();
+        this.file = null;
+        this.line = -1;
     }
 
     public Macro(String name) {
@@ -76,6 +81,32 @@ public class Macro {
         return name;
     }
 
+    /**
+     * Sets where this macro was defined.
+     */
+    public void setLocation(@CheckForNull String file, int line) {
+        this.file = file;
+        this.line = line;
+    }
+
+    /**
+     * Returns the name of the file in which this macro was defined.
+     *
+     * This method may return null if the macro was not defined
+     * by a #define directive.
+     */
+    @CheckForNull
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the line on which this macro was defined, or -1.
+     */
+    public int getLine() {
+        return line;
+    }
+
     /**
      * Sets the arguments to this macro.
      */
@@ -83,6 +114,10 @@ public class Macro {
         this.args = args;
     }
 
+    /* pp */ List<String> getArgNames() {
+        return args;
+    }
+
     /**
      * Returns true if this is a function-like macro.
      */
@@ -0,0 +1,64 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.List;
+import javax.annotation.Nonnull;
+import org.pcollections.PSet;
+
+/**
+ * An invocation of a macro whose arguments have been read.
+ *
+ * This also carries the progress of argument pre-expansion, which
+ * the Preprocessor drives from an explicit stack of these.
+ */
+/* pp */ class MacroCall {
+
+    public final Macro macro;
+    public final TokenS orig;
+    public final PSet<String> disables;
+    public final List<Argument> args;
+
+    /* The argument currently being expanded. */
+    public int index;
+    /* The collector to restore once that argument is done. */
+    public ActionCollector collector;
+    /* The expansion so far, or null between arguments. */
+    public List<TokenS> expansion;
+    /* When the invocation was first read, if macros are profiled. */
+    public long start;
+    /* The invocations found while expanding the arguments. */
+    public int nested;
+
+    public MacroCall(@Nonnull Macro macro, @Nonnull TokenS orig,
+            @Nonnull PSet<String> disables, @Nonnull List<Argument> args) {
+        this.macro = macro;
+        this.orig = orig;
+        this.disables = disables;
+        this.args = args;
+        this.index = 0;
+        this.collector = null;
+        this.expansion = null;
+        this.start = 0;
+        this.nested = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "MacroCall(" + macro.getName() + ", arg " + index + " of " + args.size() + ")";
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for the expansion of a macro invocation.
+ *
+ * The duration covers reading and expanding the arguments, but not
+ * the rescanning of the result.
+ */
+@Name("org.anarres.cpp.MacroExpansion")
+@Label("Macro Expansion")
+@Category("C Preprocessor")
+@Description("Expansion of a macro invocation")
+/* pp */ class MacroExpansionEvent extends Event {
+
+    @Label("Macro")
+    /* pp */ String macro;
+    @Label("Arguments")
+    /* pp */ int arguments;
+    @Label("Produced Tokens")
+    /* pp */ int produced;
+}
@@ -0,0 +1,212 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * The cost of each macro expanded by a {@link Preprocessor}.
+ *
+ * Statistics are kept per definition, so a macro which is redefined
+ * appears once for each place it was defined. Invocations within
+ * macro arguments are counted as well as those in the text. The time
+ * of an expansion runs from reading the invocation to pushing its
+ * result, so it includes expanding its arguments but not rescanning
+ * the result.
+ *
+ * This class is not thread-safe; use one per Preprocessor.
+ *
+ * @see Preprocessor#setMacroProfile(MacroProfile)
+ */
+public class MacroProfile {
+
+    /** A column of the report. */
+    public static enum Column {
+        /** Invocations expanded. */
+        EXPANSIONS,
+        /** Tokens produced by the expansions, before rescanning. */
+        PRODUCED,
+        /** Tokens in the arguments, before expansion. */
+        ARGUMENTS,
+        /** Invocations found while expanding the arguments. */
+        NESTED,
+        /** Time spent expanding. */
+        TIME,
+        /** Replace actions recorded for the backward transformation. */
+        REPLACES
+    }
+
+    /** The statistics for one macro definition. */
+    public static class Entry {
+
+        private final String name;
+        private final String file;
+        private final int line;
+        private final long[] values = new long[Column.values().length];
+
+        /* pp */ Entry(@Nonnull String name, @CheckForNull String file, int line) {
+            this.name = name;
+            this.file = file;
+            this.line = line;
+        }
+
+        @Nonnull
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the file in which the macro was defined, if any.
+         *
+         * @see Macro#getFile()
+         */
+        @CheckForNull
+        public String getFile() {
+            return file;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * Returns the given statistic; times are in nanoseconds.
+         */
+        @Nonnegative
+        public long get(@Nonnull Column column) {
+            return values[column.ordinal()];
+        }
+
+        @Nonnull
+        public String getLocation() {
+            if (line < 0)
+                return "<builtin>";
+            return (file == null ? "<input>" : file) + ":" + line;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder(name).append(" at ").append(getLocation());
+            for (Column column : Column.values())
+                buf.append(' ').append(column.name().toLowerCase(Locale.ROOT)).append('=').append(get(column));
+            return buf.toString();
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /* Charges the invocation, whose expansion was just pushed. */
+    /* pp */ void add(@Nonnull MacroCall call, int produced, boolean recorded) {
+        Macro m = call.macro;
+        String key = m.getName() + "@" + m.getFile() + ":" + m.getLine();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(m.getName(), m.getFile(), m.getLine());
+            entries.put(key, entry);
+        }
+        long[] values = entry.values;
+        values[Column.EXPANSIONS.ordinal()]++;
+        values[Column.PRODUCED.ordinal()] += produced;
+        values[Column.NESTED.ordinal()] += call.nested;
+        values[Column.TIME.ordinal()] += System.nanoTime() - call.start;
+        int replaces = recorded ? 1 : 0;
+        for (Argument arg : call.args) {
+            values[Column.ARGUMENTS.ordinal()] += arg.size();
+            if (arg.actions != null)
+                for (Action action : arg.actions)
+                    if (action instanceof Replace)
+                        replaces++;
+        }
+        values[Column.REPLACES.ordinal()] += replaces;
+    }
+
+    /**
+     * Returns the statistics for every macro expanded so far.
+     */
+    @Nonnull
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Returns the macros with the highest values in the given column.
+     *
+     * @param column the column to sort on, in descending order.
+     * @param limit the maximum number of entries to return.
+     */
+    @Nonnull
+    public List<Entry> getTop(@Nonnull final Column column, @Nonnegative int limit) {
+        List<Entry> out = new ArrayList<Entry>(entries.values());
+        Collections.sort(out, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int c = Long.compare(b.get(column), a.get(column));
+                if (c != 0)
+                    return c;
+                c = a.getName().compareTo(b.getName());
+                if (c != 0)
+                    return c;
+                return a.getLocation().compareTo(b.getLocation());
+            }
+        });
+        if (out.size() > limit)
+            out = out.subList(0, limit);
+        return out;
+    }
+
+    /**
+     * Formats the macros with the highest values in the given column
+     * as a table.
+     */
+    @Nonnull
+    public String report(@Nonnull Column column, @Nonnegative int limit) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(String.format("%-24s %10s %10s %10s %10s %10s %10s  %s%n",
+                "MACRO", "EXPANSIONS", "PRODUCED", "ARGUMENTS", "NESTED", "TIME(ms)", "REPLACES", "DEFINED"));
+        for (Entry entry : getTop(column, limit)) {
+            buf.append(String.format("%-24s %10d %10d %10d %10d %10.3f %10d  %s%n",
+                    entry.getName(),
+                    entry.get(Column.EXPANSIONS),
+                    entry.get(Column.PRODUCED),
+                    entry.get(Column.ARGUMENTS),
+                    entry.get(Column.NESTED),
+                    entry.get(Column.TIME) / 1e6,
+                    entry.get(Column.REPLACES),
+                    entry.getLocation()));
+        }
+        return buf.toString();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "MacroProfile(" + entries.size() + " macros)";
+    }
+}
@@ -22,6 +22,7 @@ import java.io.PrintStream;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import com.google.gson.Gson;
@@ -54,10 +55,24 @@ public class Main {
         return buf;
     }
 
+    @Nonnull
+    private static CharSequence getColumns() {
+        StringBuilder buf = new StringBuilder();
+        for (MacroProfile.Column c : MacroProfile.Column.values()) {
+            if (buf.length() > 0)
+                buf.append(", ");
+            buf.append(c.name().toLowerCase(Locale.ROOT));
+        }
+        return buf;
+    }
+
+    /* The tokens and actions are not recorded when streaming with -o. */
     static class Result {
         Preprocessor preprocessor;
+        @CheckForNull
         List<TokenS> original;
         List<TokenS> produced = new ArrayList<>();
+        @CheckForNull
         List<Action> actions;
     }
 
@@ -402,13 +417,15 @@ public class Main {
 
     public static void main(String[] args) throws Exception {
         Result result = preprocess(args, null);
+        if (result == null)
+            return;
 //        System.out.printf("original: %s\n", result.original);
 //        System.out.printf("produced: %s\n", result.produced);
 //        System.out.printf("actions: %s\n", result.actions);
-        FileUtils.writeStringToFile(new File("/Users/kaoet/Desktop/actions.txt"), result.actions.toString());
+        if (result.actions != null)
+            FileUtils.writeStringToFile(new File("/Users/kaoet/Desktop/actions.txt"), result.actions.toString());
 
-        if (!checkSelfConsistency(result)) return;
-        if (!checkIdentityChange(result)) return;
+        if (!check(result)) return;
 
 //        PrintStream writer = new PrintStream("/Users/kaoet/Desktop/playback.txt");
 //        result.preprocessor.setCurrentState(result.actions.get(0).beforeEnv, ConsPStack.from(result.original));
@@ -425,6 +442,24 @@ public class Main {
 
     }
 
+    /**
+     * Runs the consistency checks, then prints the metrics, if any,
+     * which the backward checks also record into.
+     *
+     * Output streamed with -o was not recorded, so is not checked.
+     */
+    /* pp */ static boolean check(Result result) {
+        try {
+            if (result.actions == null)
+                return true;
+            return checkSelfConsistency(result) && checkIdentityChange(result);
+        } finally {
+            Metrics metrics = result.preprocessor.getMetrics();
+            if (metrics != null)
+                System.err.println(new GsonBuilder().setPrettyPrinting().create().toJson(metrics.toJson()));
+        }
+    }
+
     static boolean checkSelfConsistency(Result result) {
         System.out.println("Checking self consistency");
         Deque<TokenS> input = new LinkedList<>(result.original);
@@ -521,6 +556,10 @@ public class Main {
     }
 
     public static Result preprocess(String[] args, String source) throws Exception {
+        return preprocess(args, source, null);
+    }
+
+    /* pp */ static Result preprocess(String[] args, String source, @CheckForNull TokenCache cache) throws Exception {
 
         OptionParser parser = new OptionParser();
         OptionSpec<?> helpOption = parser.accepts("help",
@@ -549,6 +588,27 @@ public class Main {
                 .withRequiredArg().ofType(String.class).describedAs("warning");
         OptionSpec<Void> noWarningOption = parser.acceptsAll(Arrays.asList("no-warnings", "w"),
                 "Disables ALL warnings.");
+        OptionSpec<File> preludeOption = parser.accepts("prelude",
+                "Starts from the macros and state saved by --save-prelude.")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OptionSpec<File> savePreludeOption = parser.accepts("save-prelude",
+                "Saves the macros and state reached at the end of the input.")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OptionSpec<File> outputOption = parser.acceptsAll(Arrays.asList("output", "o"),
+                "Streams the output to the given file as it is produced, without recording it for the backward checks.")
+                .withRequiredArg().ofType(File.class).describedAs("file");
+        OptionSpec<Void> recordOption = parser.accepts("record",
+                "Records the output for the backward checks even when streaming it with -o.");
+        OptionSpec<Void> compressOption = parser.accepts("compress-whitespace",
+                "Writes runs of whitespace and comments as one space, and drops blank lines, in the output file.");
+        OptionSpec<Void> metricsOption = parser.accepts("metrics",
+                "Prints timings and counters as JSON to stderr after the backward checks.");
+        OptionSpec<Integer> macroProfileOption = parser.accepts("macro-profile",
+                "Prints the n most costly macros to stderr when done.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n");
+        OptionSpec<String> macroProfileSortOption = parser.accepts("macro-profile-sort",
+                "Sorts the macro profile on the given column (" + getColumns() + ").")
+                .withRequiredArg().ofType(String.class).defaultsTo("time").describedAs("column");
         OptionSpec<File> inputsOption = parser.nonOptions()
                 .ofType(File.class).describedAs("Files to process.");
 
@@ -559,7 +619,29 @@ public class Main {
             return null;
         }
 
-        Preprocessor pp = new Preprocessor();
+        MacroProfile.Column macroProfileSort = null;
+        int macroProfileLimit = 0;
+        if (options.has(macroProfileOption)) {
+            macroProfileLimit = options.valueOf(macroProfileOption);
+            if (macroProfileLimit < 0) {
+                System.err.println("--macro-profile must not be negative, not " + macroProfileLimit + ".");
+                return null;
+            }
+            String column = options.valueOf(macroProfileSortOption);
+            try {
+                macroProfileSort = MacroProfile.Column.valueOf(column.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown --macro-profile-sort column '" + column + "'; expected one of " + getColumns() + ".");
+                return null;
+            }
+        }
+
+        Preprocessor pp;
+        if (options.has(preludeOption))
+            pp = new Preprocessor(Prelude.read(options.valueOf(preludeOption)));
+        else
+            pp = new Preprocessor();
+        pp.setTokenCache(cache);
         pp.addFeature(Feature.DIGRAPHS);
         pp.addFeature(Feature.TRIGRAPHS);
         pp.addFeature(Feature.PRAGMA_ONCE);
@@ -575,6 +657,10 @@ public class Main {
 
         if (options.has(debugOption))
             pp.addFeature(Feature.DEBUG);
+        if (options.has(metricsOption))
+            pp.setMetrics(new Metrics());
+        if (macroProfileSort != null)
+            pp.setMacroProfile(new MacroProfile());
 
         if (options.has(noWarningOption))
             pp.getWarnings().clear();
@@ -626,21 +712,37 @@ public class Main {
             LOG.info("End of search list.");
         }
 
+        ChannelTokenSink sink = null;
         try {
+            if (options.has(outputOption)) {
+                sink = ChannelTokenSink.open(options.valueOf(outputOption));
+                sink.setCompressWhitespace(options.has(compressOption));
+            }
             Result result = new Result();
             result.preprocessor = pp;
-            pp.collector = new ActionCollectorImpl(pp, pp.inputs);
-            for (; ; ) {
-                TokenS tok = pp.token();
-                if (tok == null)
-                    break;
-                if (tok.token.getType() == Token.EOF)
-                    break;
-                result.produced.add(tok);
+            if (sink != null && !options.has(recordOption)) {
+                /* Nothing is kept, so memory does not grow with the output. */
+                pp.drainTo(sink);
+            } else {
+                pp.collector = new ActionCollectorImpl(pp, pp.inputs);
+                for (; ; ) {
+                    TokenS tok = pp.token();
+                    if (tok == null)
+                        break;
+                    if (tok.token.getType() == Token.EOF)
+                        break;
+                    result.produced.add(tok);
+                    if (sink != null)
+                        sink.write(tok.token);
+                }
+                result.original = ((ActionCollectorImpl) pp.collector).original;
+                result.actions = ((ActionCollectorImpl) pp.collector).actions;
+                pp.collector = new ActionCollector();
             }
-            result.original = ((ActionCollectorImpl) pp.collector).original;
-            result.actions = ((ActionCollectorImpl) pp.collector).actions;
-            pp.collector = new ActionCollector();
+            if (pp.getMacroProfile() != null)
+                System.err.print(pp.getMacroProfile().report(macroProfileSort, macroProfileLimit));
+            if (options.has(savePreludeOption))
+                pp.getPrelude().write(options.valueOf(savePreludeOption));
             return result;
         } catch (Exception e) {
             StringBuilder buf = new StringBuilder("Preprocessor failed:\n");
@@ -650,6 +752,9 @@ public class Main {
                 s = s.getParent();
             }
             LOG.error(buf.toString(), e);
+        } finally {
+            if (sink != null)
+                sink.close();
         }
         return null;
     }
@@ -0,0 +1,160 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import javax.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link FileLexerSource} which memory-maps its file.
+ *
+ * A file which is entirely 7-bit ASCII, in a charset which agrees
+ * with ASCII, is widened directly from the mapped bytes to the
+ * lexer's characters, without a decoder. Any other file is decoded
+ * in one pass. Either way the mapping is released as soon as the
+ * characters have been taken, rather than when the mapping is
+ * garbage collected.
+ *
+ * @see JavaFileSystem#setMemoryMapped(boolean)
+ */
+public class MappedFileLexerSource extends FileLexerSource {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFileLexerSource.class);
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    public MappedFileLexerSource(@Nonnull File file, @Nonnull Charset charset, @Nonnull String path)
+            throws IOException {
+        super(read(file, charset), file, path);
+    }
+
+    public MappedFileLexerSource(@Nonnull File file, @Nonnull Charset charset)
+            throws IOException {
+        this(file, charset, file.getPath());
+    }
+
+    @Nonnull
+    private static JoinReader read(@Nonnull File file, @Nonnull Charset charset)
+            throws IOException {
+        MappedByteBuffer mapping;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            /* The mapping remains valid after the channel is closed. */
+            raf.close();
+        }
+        try {
+            return read(mapping, charset);
+        } finally {
+            unmap(mapping);
+        }
+    }
+
+    private static boolean isAscii(@Nonnull Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8)
+                || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    /* Tests eight bytes at a time for a set high bit. */
+    private static boolean isAscii(@Nonnull ByteBuffer bytes) {
+        int limit = bytes.limit();
+        int i = 0;
+        for (; i + 8 <= limit; i += 8)
+            if ((bytes.getLong(i) & HIGH_BITS) != 0)
+                return false;
+        for (; i < limit; i++)
+            if (bytes.get(i) < 0)
+                return false;
+        return true;
+    }
+
+    /* Widens eight ASCII bytes at a time, straight from the buffer. */
+    private static void widen(@Nonnull ByteBuffer mapping, @Nonnull char[] text, int length) {
+        ByteBuffer bytes = mapping.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = bytes.getLong(i);
+            text[i] = (char) (word >>> 56);
+            text[i + 1] = (char) ((word >>> 48) & 0xFF);
+            text[i + 2] = (char) ((word >>> 40) & 0xFF);
+            text[i + 3] = (char) ((word >>> 32) & 0xFF);
+            text[i + 4] = (char) ((word >>> 24) & 0xFF);
+            text[i + 5] = (char) ((word >>> 16) & 0xFF);
+            text[i + 6] = (char) ((word >>> 8) & 0xFF);
+            text[i + 7] = (char) (word & 0xFF);
+        }
+        for (; i < length; i++)
+            text[i] = (char) bytes.get(i);
+    }
+
+    @Nonnull
+    /* pp */ static JoinReader read(@Nonnull ByteBuffer mapping, @Nonnull Charset charset)
+            throws IOException {
+        if (isAscii(charset) && isAscii(mapping)) {
+            int length = mapping.limit();
+            char[] text = new char[length];
+            widen(mapping, text, length);
+            return new JoinReader(text, length, false);
+        }
+        /* The same replacement as an InputStreamReader. */
+        CharBuffer text = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(mapping.duplicate());
+        return new JoinReader(text.array(), text.limit(), false);
+    }
+
+    /* Releases the mapping now, where the JVM allows it. */
+    /* pp */ static void unmap(@Nonnull MappedByteBuffer mapping) {
+        try {
+            try {
+                /* Java 9 and later. */
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = type.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), mapping);
+            } catch (NoSuchMethodException e) {
+                /* Java 8. */
+                Method cleaner = mapping.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(mapping);
+                if (c != null)
+                    c.getClass().getMethod("clean").invoke(c);
+            }
+        } catch (Exception e) {
+            LOG.debug("Failed to unmap; leaving it to the garbage collector", e);
+        }
+    }
+}
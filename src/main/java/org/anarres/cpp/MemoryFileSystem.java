@@ -0,0 +1,215 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A virtual filesystem which holds files in memory, optionally
+ * overlaying another filesystem.
+ *
+ * A path which has been {@link #put(String, char[]) put} is served
+ * from memory, and its Source lexes directly from the stored array.
+ * Any other path is passed to the underlying filesystem, if there
+ * is one, and is otherwise missing. Without an underlying
+ * filesystem, no I/O is done at all.
+ *
+ * Paths are normalized lexically, so "a/./b.h" and "a/c/../b.h"
+ * name the same file as "a/b.h".
+ *
+ * This class is thread-safe.
+ */
+public class MemoryFileSystem implements VirtualFileSystem {
+
+    private static class Entry {
+
+        private final char[] text;
+        private final long version;
+
+        Entry(char[] text, long version) {
+            this.text = text;
+            this.version = version;
+        }
+    }
+
+    /* Stands in for a modification time; unique per put(). */
+    private static final AtomicLong VERSION = new AtomicLong();
+
+    private final ConcurrentMap<String, Entry> files = new ConcurrentHashMap<String, Entry>();
+    /* Changes whenever a file is put or removed. */
+    private final AtomicLong modifications = new AtomicLong();
+    @CheckForNull
+    private final VirtualFileSystem delegate;
+
+    /**
+     * Creates a MemoryFileSystem over the given filesystem.
+     *
+     * @param delegate The filesystem to consult for paths not held
+     * in memory, or null for none.
+     */
+    public MemoryFileSystem(@CheckForNull VirtualFileSystem delegate) {
+        this.delegate = delegate;
+    }
+
+    public MemoryFileSystem() {
+        this(null);
+    }
+
+    @Nonnull
+    private static String normalize(@Nonnull String path) {
+        return Paths.get(path).normalize().toString();
+    }
+
+    /* The current directory normalizes to "", which File would read as the root. */
+    @Nonnull
+    private static String child(@Nonnull String dir, @Nonnull String name) {
+        if (dir.isEmpty())
+            return normalize(name);
+        return normalize(new File(dir, name).getPath());
+    }
+
+    /**
+     * Adds or replaces a file.
+     *
+     * The array is not copied, and must not be modified afterwards.
+     */
+    public void put(@Nonnull String path, @Nonnull char[] text) {
+        files.put(normalize(path), new Entry(text, VERSION.incrementAndGet()));
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Adds or replaces a file.
+     */
+    public void put(@Nonnull String path, @Nonnull String text) {
+        put(path, text.toCharArray());
+    }
+
+    /**
+     * Removes a file, uncovering any file at the same path in the
+     * underlying filesystem.
+     *
+     * @return true if the file was held in memory.
+     */
+    public boolean remove(@Nonnull String path) {
+        if (files.remove(normalize(path)) == null)
+            return false;
+        modifications.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes all files held in memory.
+     */
+    public void clear() {
+        files.clear();
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of files held in memory.
+     */
+    public int size() {
+        return files.size();
+    }
+
+    @Override
+    public VirtualFile getFile(String path) {
+        return new MemoryFile(normalize(path));
+    }
+
+    @Override
+    public VirtualFile getFile(String dir, String name) {
+        return new MemoryFile(child(normalize(dir), name));
+    }
+
+    private class MemoryFile implements VirtualFile, IncludeCache.Versioned {
+
+        private final String path;
+
+        public MemoryFile(@Nonnull String path) {
+            this.path = path;
+        }
+
+        @Override
+        public boolean isFile() {
+            if (files.containsKey(path))
+                return true;
+            return delegate != null && delegate.getFile(path).isFile();
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String getName() {
+            return new File(path).getName();
+        }
+
+        @Override
+        public MemoryFile getParentFile() {
+            File file = new File(path);
+            String parent = file.getParent();
+            if (parent == null) {
+                /* A relative top-level path is in the current directory, named "". */
+                if (file.isAbsolute() || path.isEmpty())
+                    return null;
+                parent = "";
+            }
+            return new MemoryFile(parent);
+        }
+
+        @Override
+        public MemoryFile getChildFile(String name) {
+            return new MemoryFile(child(path, name));
+        }
+
+        @Override
+        public boolean addVersions(List<Long> versions) {
+            versions.add(modifications.get());
+            return delegate == null
+                    || IncludeCache.addVersions(delegate.getFile(path.isEmpty() ? "." : path), versions);
+        }
+
+        @Override
+        public Source getSource() throws IOException {
+            Entry entry = files.get(path);
+            if (entry != null)
+                return new FileLexerSource(new JoinReader(entry.text, false),
+                        new DetachedFile(path, entry.text.length, entry.version), path);
+            if (delegate != null)
+                return delegate.getFile(path).getSource();
+            throw new IOException("No such file: " + path);
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+
+}
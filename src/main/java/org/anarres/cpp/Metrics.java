@@ -0,0 +1,202 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import com.google.gson.JsonObject;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Timings and counters for a {@link Preprocessor}, and for any
+ * {@link Backward} transformation run over it.
+ *
+ * Metrics are collected only while a Metrics is set on the
+ * Preprocessor; otherwise each instrumented site costs one null
+ * check. Times are inclusive: time spent in a macro expansion
+ * includes the lexing and argument expansion it needed, and time
+ * spent in a directive includes the include it processed. A file is
+ * read as it is lexed, so the {@link Phase#IO} time of an include is
+ * only the time to open it, unless it is memory-mapped.
+ *
+ * This class is not thread-safe; use one per Preprocessor.
+ *
+ * @see Preprocessor#setMetrics(Metrics)
+ */
+public class Metrics {
+
+    /** A timed phase. */
+    public static enum Phase {
+        /** Reading a token from a lexer. */
+        LEX,
+        /** Processing a directive, but not lexing a file it includes. */
+        DIRECTIVE,
+        /** Expanding a macro invocation, including its arguments. */
+        MACRO,
+        /** Expanding the arguments of a macro invocation. */
+        ARGUMENTS,
+        /** Resolving and entering an #include. */
+        INCLUDE,
+        /** Opening an included file. */
+        IO,
+        /** Recording actions for the backward transformation. */
+        RECORD,
+        /** Running a candidate forward in the backward transformation. */
+        FORWARD
+    }
+
+    /** An event counter. */
+    public static enum Counter {
+        /**
+         * Actions recorded for the backward transformation, including
+         * those recorded while expanding macro arguments.
+         */
+        ACTIONS,
+        /** Environment snapshots created. */
+        ENVIRONMENTS,
+        /** Tokens produced while running candidates forward. */
+        FORWARD_STEPS,
+        /** Candidates rejected because the input ran out. */
+        FORWARD_DRAINED,
+        /** Candidates rejected because they produced an unexpected token. */
+        FORWARD_MISMATCHED
+    }
+
+    private final long[] counts = new long[Phase.values().length];
+    private final long[] nanos = new long[Phase.values().length];
+    private final long[] counters = new long[Counter.values().length];
+    /* Strategy name to {attempts, successes}. */
+    private final Map<String, long[]> strategies = new LinkedHashMap<String, long[]>();
+
+    /**
+     * Records one occurrence of the given phase, which started at
+     * the given {@link System#nanoTime()}.
+     */
+    public void add(@Nonnull Phase phase, long start) {
+        counts[phase.ordinal()]++;
+        nanos[phase.ordinal()] += System.nanoTime() - start;
+    }
+
+    public void increment(@Nonnull Counter counter) {
+        counters[counter.ordinal()]++;
+    }
+
+    public void add(@Nonnull Counter counter, long delta) {
+        counters[counter.ordinal()] += delta;
+    }
+
+    /** Records an attempt of the named backward strategy. */
+    public void strategy(@Nonnull String name, boolean success) {
+        long[] s = strategies.get(name);
+        if (s == null) {
+            s = new long[2];
+            strategies.put(name, s);
+        }
+        s[0]++;
+        if (success)
+            s[1]++;
+    }
+
+    @Nonnegative
+    public long getCount(@Nonnull Phase phase) {
+        return counts[phase.ordinal()];
+    }
+
+    @Nonnegative
+    public long getNanos(@Nonnull Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    @Nonnegative
+    public long get(@Nonnull Counter counter) {
+        return counters[counter.ordinal()];
+    }
+
+    @Nonnegative
+    public long getStrategyAttempts(@Nonnull String name) {
+        long[] s = strategies.get(name);
+        return (s == null) ? 0 : s[0];
+    }
+
+    @Nonnegative
+    public long getStrategySuccesses(@Nonnull String name) {
+        long[] s = strategies.get(name);
+        return (s == null) ? 0 : s[1];
+    }
+
+    /** Adds the given metrics into these. */
+    public void addAll(@Nonnull Metrics other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+            nanos[i] += other.nanos[i];
+        }
+        for (int i = 0; i < counters.length; i++)
+            counters[i] += other.counters[i];
+        for (Map.Entry<String, long[]> e : other.strategies.entrySet()) {
+            long[] s = strategies.get(e.getKey());
+            if (s == null) {
+                s = new long[2];
+                strategies.put(e.getKey(), s);
+            }
+            s[0] += e.getValue()[0];
+            s[1] += e.getValue()[1];
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+            nanos[i] = 0;
+        }
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = 0;
+        strategies.clear();
+    }
+
+    @Nonnull
+    public JsonObject toJson() {
+        JsonObject phases = new JsonObject();
+        for (Phase phase : Phase.values()) {
+            JsonObject p = new JsonObject();
+            p.addProperty("count", getCount(phase));
+            p.addProperty("ms", getNanos(phase) / 1e6);
+            phases.add(phase.name().toLowerCase(Locale.ROOT), p);
+        }
+        JsonObject c = new JsonObject();
+        for (Counter counter : Counter.values())
+            c.addProperty(counter.name().toLowerCase(Locale.ROOT), get(counter));
+        JsonObject s = new JsonObject();
+        for (Map.Entry<String, long[]> e : strategies.entrySet()) {
+            JsonObject strategy = new JsonObject();
+            strategy.addProperty("attempts", e.getValue()[0]);
+            strategy.addProperty("successes", e.getValue()[1]);
+            s.add(e.getKey(), strategy);
+        }
+        JsonObject result = new JsonObject();
+        result.add("phases", phases);
+        result.add("counters", c);
+        result.add("strategies", s);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.pcollections.Empty;
+import org.pcollections.PMap;
+import org.pcollections.PSet;
+import org.pcollections.PStack;
+
+/**
+ * A saved preprocessor state, from which new Preprocessors may start.
+ *
+ * A prelude is typically taken after the builtin and command-line
+ * macros are defined and a set of common headers has been
+ * included. It holds the macros, the conditional stack, the
+ * value of __COUNTER__, the files seen with #pragma once, and the
+ * known include guards. It does not hold configuration such as
+ * features, warnings or include paths.
+ *
+ * @see Preprocessor#getPrelude()
+ * @see Preprocessor#Preprocessor(Prelude)
+ */
+public class Prelude {
+
+    private static final int MAGIC = 0x4a435050;	/* "JCPP" */
+    private static final int VERSION = 1;
+
+    private static final int MACRO_BUILTIN = 0;
+    private static final int MACRO_OBJECT = 1;
+    private static final int MACRO_FUNCTION = 2;
+    private static final int MACRO_VARIADIC = 3;
+
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_STRING = 1;
+    private static final int VALUE_INTEGER = 2;
+    private static final int VALUE_CHARACTER = 3;
+    private static final int VALUE_NUMERIC = 4;
+
+    /* pp */ final PMap<String, Macro> macros;
+    /* pp */ final PStack<State> states;
+    /* pp */ final int counter;
+    /* pp */ final PSet<String> onceseenpaths;
+    /* pp */ final Map<String, String> guards;
+
+    /* pp */ Prelude(@Nonnull PMap<String, Macro> macros, @Nonnull PStack<State> states,
+            int counter, @Nonnull PSet<String> onceseenpaths, @Nonnull Map<String, String> guards) {
+        this.macros = macros;
+        this.states = states;
+        this.counter = counter;
+        this.onceseenpaths = onceseenpaths;
+        this.guards = Collections.unmodifiableMap(new HashMap<String, String>(guards));
+    }
+
+    /**
+     * Returns the macros defined in this prelude.
+     */
+    @Nonnull
+    public Map<String, Macro> getMacros() {
+        return macros;
+    }
+
+    /* Strings are written once and referred to by index thereafter. */
+    private static class Output {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        public Output(@Nonnull OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        public void writeInt(int value) throws IOException {
+            /* Unsigned LEB128. Callers offset values which may be -1. */
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        public void writeString(@CheckForNull String s) throws IOException {
+            if (s == null) {
+                writeInt(0);
+                return;
+            }
+            Integer idx = strings.get(s);
+            if (idx != null) {
+                writeInt(idx + 1);
+                return;
+            }
+            strings.put(s, strings.size());
+            writeInt(strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static class Input {
+
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<String>();
+
+        public Input(@Nonnull InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        public int readInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed prelude: integer too long");
+        }
+
+        @CheckForNull
+        public String readString() throws IOException {
+            int idx = readInt();
+            if (idx == 0)
+                return null;
+            if (idx <= strings.size())
+                return strings.get(idx - 1);
+            if (idx != strings.size() + 1)
+                throw new IOException("Malformed prelude: bad string index " + idx);
+            byte[] bytes = new byte[readInt()];
+            in.readFully(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+    }
+
+    /**
+     * Writes this prelude to the given stream.
+     *
+     * The stream is flushed but not closed.
+     */
+    public void write(@Nonnull OutputStream stream) throws IOException {
+        Output out = new Output(stream);
+        out.out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(counter);
+
+        /* Bottom of the stack first. */
+        List<State> stack = new ArrayList<State>(states);
+        Collections.reverse(stack);
+        out.writeInt(stack.size());
+        for (State state : stack)
+            out.writeInt((state.isParentActive() ? 4 : 0)
+                    | (state.isActive() ? 2 : 0)
+                    | (state.sawElse() ? 1 : 0));
+
+        out.writeInt(onceseenpaths.size());
+        for (String path : onceseenpaths)
+            out.writeString(path);
+
+        out.writeInt(guards.size());
+        for (Map.Entry<String, String> e : guards.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeString(e.getValue());
+        }
+
+        out.writeInt(macros.size());
+        for (Macro m : macros.values())
+            write(out, m);
+        out.flush();
+    }
+
+    /** Writes this prelude to the given file. */
+    public void write(@Nonnull File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void write(@Nonnull Output out, @Nonnull Macro m) throws IOException {
+        out.writeString(m.getName());
+        if (Preprocessor.getBuiltin(m.getName()) == m) {
+            out.writeInt(MACRO_BUILTIN);
+            return;
+        }
+        if (!m.isFunctionLike()) {
+            out.writeInt(MACRO_OBJECT);
+        } else {
+            out.writeInt(m.isVariadic() ? MACRO_VARIADIC : MACRO_FUNCTION);
+            List<String> args = m.getArgNames();
+            out.writeInt(args.size());
+            for (String arg : args)
+                out.writeString(arg);
+        }
+        out.writeString(m.getFile());
+        out.writeInt(m.getLine() + 1);
+        List<Token> tokens = m.getTokens();
+        out.writeInt(tokens.size());
+        for (Token tok : tokens)
+            write(out, tok);
+    }
+
+    private static void write(@Nonnull Output out, @Nonnull Token tok) throws IOException {
+        out.writeInt(tok.getType());
+        out.writeString(tok.getFile());
+        out.writeInt(tok.getLine() + 1);
+        out.writeInt(tok.getColumn() + 1);
+        out.writeString(tok.getText());
+        Object value = tok.getValue();
+        if (value == null) {
+            out.writeInt(VALUE_NULL);
+        } else if (value instanceof String) {
+            out.writeInt(VALUE_STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.writeInt(VALUE_INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Character) {
+            out.writeInt(VALUE_CHARACTER);
+            out.writeInt((Character) value);
+        } else if (value instanceof NumericValue) {
+            NumericValue n = (NumericValue) value;
+            out.writeInt(VALUE_NUMERIC);
+            out.writeInt(n.getBase());
+            out.writeString(n.getIntegerPart());
+            out.writeString(n.getFractionalPart());
+            out.writeInt(n.getExponentBase());
+            out.writeString(n.getExponent());
+            out.writeInt(n.getFlags());
+        } else {
+            throw new IOException("Cannot save value " + value + " of token " + tok);
+        }
+    }
+
+    /**
+     * Reads a prelude from the given stream.
+     *
+     * The stream is not closed.
+     */
+    @Nonnull
+    public static Prelude read(@Nonnull InputStream stream) throws IOException {
+        Input in = new Input(stream);
+        if (in.in.readInt() != MAGIC)
+            throw new IOException("Not a prelude");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported prelude version " + version);
+        int counter = in.readInt();
+
+        PStack<State> states = Empty.stack();
+        for (int i = in.readInt(); i > 0; i--) {
+            int flags = in.readInt();
+            State state = new State()
+                    .withParentActive((flags & 4) != 0)
+                    .withActive((flags & 2) != 0);
+            if ((flags & 1) != 0)
+                state = state.withSawElse();
+            states = states.plus(state);
+        }
+
+        PSet<String> onceseenpaths = Empty.set();
+        for (int i = in.readInt(); i > 0; i--)
+            onceseenpaths = onceseenpaths.plus(in.readString());
+
+        Map<String, String> guards = new HashMap<String, String>();
+        for (int i = in.readInt(); i > 0; i--)
+            guards.put(in.readString(), in.readString());
+
+        PMap<String, Macro> macros = Empty.map();
+        for (int i = in.readInt(); i > 0; i--) {
+            Macro m = readMacro(in);
+            macros = macros.plus(m.getName(), m);
+        }
+
+        return new Prelude(macros, states, counter, onceseenpaths, guards);
+    }
+
+    /** Reads a prelude from the given file. */
+    @Nonnull
+    public static Prelude read(@Nonnull File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Nonnull
+    private static Macro readMacro(@Nonnull Input in) throws IOException {
+        String name = in.readString();
+        int kind = in.readInt();
+        if (kind == MACRO_BUILTIN) {
+            Macro m = Preprocessor.getBuiltin(name);
+            if (m == null)
+                throw new IOException("Malformed prelude: unknown builtin " + name);
+            return m;
+        }
+        Macro m = new Macro(name);
+        switch (kind) {
+            case MACRO_OBJECT:
+                break;
+            case MACRO_FUNCTION:
+            case MACRO_VARIADIC:
+                List<String> args = new ArrayList<String>();
+                for (int i = in.readInt(); i > 0; i--)
+                    args.add(in.readString());
+                m.setArgs(args);
+                m.setVariadic(kind == MACRO_VARIADIC);
+                break;
+            default:
+                throw new IOException("Malformed prelude: bad macro kind " + kind);
+        }
+        String file = in.readString();
+        m.setLocation(file, in.readInt() - 1);
+        for (int i = in.readInt(); i > 0; i--)
+            m.addToken(readToken(in));
+        return m;
+    }
+
+    @Nonnull
+    private static Token readToken(@Nonnull Input in) throws IOException {
+        int type = in.readInt();
+        String file = in.readString();
+        int line = in.readInt() - 1;
+        int column = in.readInt() - 1;
+        String text = in.readString();
+        Object value;
+        int tag = in.readInt();
+        switch (tag) {
+            case VALUE_NULL:
+                value = null;
+                break;
+            case VALUE_STRING:
+                value = in.readString();
+                break;
+            case VALUE_INTEGER:
+                value = Integer.valueOf(in.readInt());
+                break;
+            case VALUE_CHARACTER:
+                value = Character.valueOf((char) in.readInt());
+                break;
+            case VALUE_NUMERIC:
+                NumericValue n = new NumericValue(in.readInt(), in.readString());
+                String fraction = in.readString();
+                if (fraction != null)
+                    n.setFractionalPart(fraction);
+                int expbase = in.readInt();
+                String exponent = in.readString();
+                if (exponent != null)
+                    n.setExponent(expbase, exponent);
+                n.setFlags(in.readInt());
+                value = n;
+                break;
+            default:
+                throw new IOException("Malformed prelude: bad value tag " + tag);
+        }
+        return new Token(type, file, line, column, text, value);
+    }
+}
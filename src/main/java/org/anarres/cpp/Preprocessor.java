@@ -19,6 +19,7 @@ package org.anarres.cpp;
 import java.io.*;
 import java.util.*;
 import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.crypto.interfaces.PBEKey;
 
@@ -100,6 +101,14 @@ public class Preprocessor implements Closeable {
     /* Miscellaneous support. */
     private int counter;
     private PSet<String> onceseenpaths = Empty.set();
+    /* Evaluated #if and #elif directives, by location. */
+    private final Map<String, Condition> conditions = new HashMap<String, Condition>();
+    /* Guard macros of included files, by path. */
+    private final Map<String, String> guards = new HashMap<String, String>();
+    /* Canonical texts of lexed identifiers and whitespace. */
+    private final Interner interner = new Interner();
+    /* The number of errors and warnings reported so far. */
+    private int diagnostics = 0;
     //private final List<VirtualFile> includes = new ArrayList<VirtualFile>();
 
     /* Support junk to make it work like cpp */
@@ -111,8 +120,19 @@ public class Preprocessor implements Closeable {
     private Set<Feature> features;
     private Set<Warning> warnings;
     private VirtualFileSystem filesystem;
+    @CheckForNull
+    private TokenCache tokenCache;
+    @CheckForNull
+    private IncludeCache includeCache;
+    @CheckForNull
+    private Metrics metrics;
+    @CheckForNull
+    private MacroProfile profile;
+    /* The event for the #include being processed, if it is recorded. */
+    @CheckForNull
+    private Object include_event;
     private PreprocessorListener listener;
-    public ActionCollector collector;
+    public ActionCollector collector = new ActionCollector();
     public boolean collectOnly = false;
 
     /* Source tokens */
@@ -144,6 +164,8 @@ public class Preprocessor implements Closeable {
         if (oldEnv != null && oldEnv.macros == this.macros && oldEnv.states == this.states && oldEnv.counter == this.counter && oldEnv.onceseenpaths == this.onceseenpaths) {
             return oldEnv;
         }
+        if (metrics != null)
+            metrics.increment(Metrics.Counter.ENVIRONMENTS);
         return new Environment(macros, states, counter, onceseenpaths);
     }
 
@@ -178,6 +200,74 @@ public class Preprocessor implements Closeable {
         addInput(initial);
     }
 
+    /**
+     * Creates a Preprocessor which starts from the state saved in
+     * the given Prelude.
+     *
+     * @see #getPrelude()
+     */
+    public Preprocessor(@Nonnull Prelude prelude) {
+        this();
+        this.macros = prelude.macros;
+        this.states = prelude.states;
+        this.counter = prelude.counter;
+        this.onceseenpaths = prelude.onceseenpaths;
+        this.guards.putAll(prelude.guards);
+    }
+
+    /**
+     * Returns the current state of this Preprocessor as a Prelude,
+     * which may be saved and used to start other Preprocessors.
+     */
+    @Nonnull
+    public Prelude getPrelude() {
+        return new Prelude(macros, states, counter, onceseenpaths, guards);
+    }
+
+    /**
+     * Closes all inputs and sources, and restores the state saved in
+     * the given Prelude, so that this Preprocessor may be reused for
+     * another translation unit.
+     *
+     * The features, warnings, include paths, file system, listener,
+     * token cache and include cache are kept, as are the evaluated
+     * conditionals, include guards and interned identifiers learned
+     * so far. The macro table is persistent, so restoring it takes
+     * constant time.
+     *
+     * A Preprocessor is typically configured, its state taken with
+     * {@link #getPrelude()}, and then reset to that state before
+     * each translation unit.
+     */
+    public void reset(@Nonnull Prelude prelude)
+            throws IOException {
+        close();
+        this.inputs = new ArrayList<Source>();
+        this.source = null;
+        this.source_token = new Stack<>();
+        this.expr_token = null;
+        this.expr_depends = null;
+        this.collector = new ActionCollector();
+
+        this.macros = prelude.macros;
+        this.states = prelude.states;
+        this.counter = prelude.counter;
+        this.onceseenpaths = prelude.onceseenpaths;
+        this.guards.putAll(prelude.guards);
+    }
+
+    /* Returns the builtin macro of the given name, if any. */
+    @CheckForNull
+    /* pp */ static Macro getBuiltin(@Nonnull String name) {
+        if (__LINE__.getName().equals(name))
+            return __LINE__;
+        if (__FILE__.getName().equals(name))
+            return __FILE__;
+        if (__COUNTER__.getName().equals(name))
+            return __COUNTER__;
+        return null;
+    }
+
     /** Equivalent to
      * 'new Preprocessor(new {@link FileLexerSource}(file))'
      */
@@ -201,6 +291,88 @@ public class Preprocessor implements Closeable {
         return filesystem;
     }
 
+    /**
+     * Sets the TokenCache from which included files are replayed.
+     *
+     * The same cache may be shared by several Preprocessors.
+     *
+     * @param tokenCache the cache, or null to lex every included file.
+     */
+    public void setTokenCache(@CheckForNull TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
+    /**
+     * Returns the TokenCache used by this Preprocessor, if any.
+     */
+    @CheckForNull
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    /**
+     * Sets the IncludeCache in which the resolution of each #include
+     * against the include paths is remembered.
+     *
+     * The same cache may be shared by several Preprocessors.
+     *
+     * @param includeCache the cache, or null to search every time.
+     */
+    public void setIncludeCache(@CheckForNull IncludeCache includeCache) {
+        this.includeCache = includeCache;
+    }
+
+    /**
+     * Returns the IncludeCache used by this Preprocessor, if any.
+     */
+    @CheckForNull
+    public IncludeCache getIncludeCache() {
+        return includeCache;
+    }
+
+    /**
+     * Sets the Metrics into which this Preprocessor, and any
+     * {@link Backward} transformation over it, records timings
+     * and counters.
+     *
+     * @param metrics the metrics, or null to record nothing.
+     */
+    public void setMetrics(@CheckForNull Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the Metrics used by this Preprocessor, if any.
+     */
+    @CheckForNull
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the MacroProfile into which this Preprocessor records
+     * the cost of each macro it expands.
+     *
+     * @param profile the profile, or null to record nothing.
+     */
+    public void setMacroProfile(@CheckForNull MacroProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Returns the MacroProfile used by this Preprocessor, if any.
+     */
+    @CheckForNull
+    public MacroProfile getMacroProfile() {
+        return profile;
+    }
+
+    /* Returns the table shared by the lexers of this Preprocessor. */
+    @Nonnull
+    /* pp */ Interner getInterner() {
+        return interner;
+    }
+
     /**
      * Sets the PreprocessorListener which handles events for
      * this Preprocessor.
@@ -326,6 +498,7 @@ public class Preprocessor implements Closeable {
      */
     protected void error(int line, int column, @Nonnull String msg)
             throws LexerException {
+        diagnostics++;
         if (listener != null)
             listener.handleError(source, line, column, msg);
         else
@@ -353,6 +526,7 @@ public class Preprocessor implements Closeable {
      */
     protected void warning(int line, int column, @Nonnull String msg)
             throws LexerException {
+        diagnostics++;
         if (warnings.contains(Warning.ERROR))
             error(line, column, msg);
         else if (listener != null)
@@ -662,10 +836,14 @@ public class Preprocessor implements Closeable {
                 collector.getToken(t, getSource());
                 return t;
             }
+            long start = (metrics != null) ? System.nanoTime() : 0;
             TokenS tok = s.token();
+            if (metrics != null)
+                metrics.add(Metrics.Phase.LEX, start);
             /* XXX Refactor with skipline() */
             if (tok.token.getType() == EOF && s.isAutopop()) {
                 // System.out.println("Autopop " + s);
+                guard_end(s);
                 TokenS mark = pop_source(true);
                 if (mark != null) {
                     collector.getToken(mark, getSource());
@@ -680,6 +858,76 @@ public class Preprocessor implements Closeable {
         }
     }
 
+    /**
+     * Passes over raw text in an inactive block, if the source
+     * supports it.
+     *
+     * @see Source#skipped()
+     *
+     * The result is recorded as for {@link #source_token()}.
+     *
+     * @return the SKIPPED token, or null if a token must be lexed.
+     */
+    @CheckForNull
+    private TokenS source_skipped(@Nonnull Source s)
+            throws IOException,
+            LexerException {
+        if (!source_token.isEmpty())
+            return null;
+        TokenS tok = s.skipped();
+        if (tok != null)
+            collector.getToken(tok, s);
+        return tok;
+    }
+
+    @CheckForNull
+    private IncludeGuard guard(@CheckForNull Source s) {
+        if (s instanceof FileLexerSource)
+            return ((FileLexerSource) s).guard;
+        if (s instanceof CachedTokenSource)
+            return ((CachedTokenSource) s).guard;
+        return null;
+    }
+
+    /* Notes a token outside any directive, for include guard detection. */
+    private void guard_token(@Nonnull TokenS tok) {
+        IncludeGuard guard = guard(source);
+        if (guard == null)
+            return;
+        switch (tok.token.getType()) {
+            case WHITESPACE:
+            case CCOMMENT:
+            case CPPCOMMENT:
+            case NL:
+            case EOF:
+            case HASH:
+            case P_LINE:
+                break;
+            default:
+                guard.token(states.size());
+                break;
+        }
+    }
+
+    /* Notes a conditional opened in the given source. */
+    private void guard_conditional(@CheckForNull Source s, @CheckForNull String macro) {
+        IncludeGuard guard = guard(s);
+        if (guard != null)
+            guard.conditional(states.size() - 1, macro);
+    }
+
+    /* Records the guard macro, if any, of a source which has ended. */
+    private void guard_end(@Nonnull Source s) {
+        IncludeGuard guard = guard(s);
+        if (guard == null)
+            return;
+        String macro = guard.getMacro(states.size());
+        if (macro != null)
+            guards.put(guard.getPath(), macro);
+        else
+            guards.remove(guard.getPath());
+    }
+
     private void source_untoken(TokenS tok) {
         collector.ungetToken(tok, getSource());
         this.source_token.push(tok);
@@ -747,6 +995,38 @@ public class Preprocessor implements Closeable {
     private boolean macro(Macro m, TokenS orig)
             throws IOException,
             LexerException {
+        long start = (metrics != null) ? System.nanoTime() : 0;
+        Object event = Events.beginMacro();
+        MacroCall call = macro_call(m, orig);
+        if (call == null)
+            return false;
+        if (!call.args.isEmpty()) {
+            long args = (metrics != null) ? System.nanoTime() : 0;
+            expand_arguments(call);
+            if (metrics != null)
+                metrics.add(Metrics.Phase.ARGUMENTS, args);
+        }
+        int produced = macro_expand(call);
+        if (metrics != null)
+            metrics.add(Metrics.Phase.MACRO, start);
+        Events.commitMacro(event, m.getName(), call.args.size(), produced);
+        return true;
+    }
+
+    /**
+     * Reads the arguments of an invocation of the given macro.
+     *
+     * The arguments are not expanded here; see
+     * {@link #expand_arguments(MacroCall)}.
+     *
+     * @return the invocation, or null if the macro is function-like
+     * but the name is not followed by an argument list.
+     */
+    @CheckForNull
+    private MacroCall macro_call(Macro m, TokenS orig)
+            throws IOException,
+            LexerException {
+        long start = (profile != null) ? System.nanoTime() : 0;
         TokenS tok;
         List<Argument> args;
 
@@ -773,7 +1053,7 @@ public class Preprocessor implements Closeable {
                     default:
                         for (int i = gotTokens.size()-1;i>=0;i--)
                             source_untoken(gotTokens.get(i));
-                        return false;
+                        return null;
                 }
             }
 
@@ -796,7 +1076,7 @@ public class Preprocessor implements Closeable {
                     switch (tok.token.getType()) {
                         case EOF:
                             error(tok.token, "EOF in macro args");
-                            return false;
+                            return null;
 
                         case ',':
                             if (depth == 0) {
@@ -862,7 +1142,7 @@ public class Preprocessor implements Closeable {
                                     "variadic macro " + m.getName()
                                     + " has at least " + (m.getArgs() - 1) + " parameters "
                                     + "but given " + args.size() + " args");
-                            return false;
+                            return null;
                         }
                     } else {
                         error(tok.token,
@@ -873,20 +1153,8 @@ public class Preprocessor implements Closeable {
                          * note that GNU cpp does exactly what we do,
                          * i.e. output the macro name and chew the args.
                          */
-                        return false;
-                    }
-                }
-
-                for (Argument a : args) {
-                    ActionCollector currentCollector =collector;
-                    if (collector instanceof ActionCollectorImpl) {
-                        collector = new ActionCollectorImpl(this, Collections.emptyList());
+                        return null;
                     }
-                    a.expand(this);
-                    if (collector instanceof ActionCollectorImpl) {
-                        a.actions = ((ActionCollectorImpl)collector).actions;
-                    }
-                    collector = currentCollector;
                 }
 
                 // System.out.println("Macro " + m + " args " + args);
@@ -900,6 +1168,28 @@ public class Preprocessor implements Closeable {
             args = Collections.emptyList();
         }
 
+        MacroCall call = new MacroCall(m, orig, disables, args);
+        call.start = start;
+        return call;
+    }
+
+    /**
+     * Pushes the expansion of the given invocation onto the input stack.
+     *
+     * The arguments of the call must already have been expanded.
+     *
+     * @return the number of tokens in the expansion.
+     */
+    @Nonnegative
+    private int macro_expand(@Nonnull MacroCall call)
+            throws IOException,
+            LexerException {
+        Macro m = call.macro;
+        TokenS orig = call.orig;
+        PSet<String> disables = call.disables;
+        List<Argument> args = call.args;
+        int produced;
+
         if (m == __LINE__) {
             TokenS[] tokens = new TokenS[]{
                     new TokenS(
@@ -910,6 +1200,7 @@ public class Preprocessor implements Closeable {
             };
             collector.replaceWithNewTokens(Arrays.asList(tokens[0].token), disables);
             push_source(new FixedTokenSource(tokens), true);
+            produced = 1;
         } else if (m == __FILE__) {
             StringBuilder buf = new StringBuilder("\"");
             String name = orig.token.getFile();
@@ -939,6 +1230,7 @@ public class Preprocessor implements Closeable {
             };
             collector.replaceWithNewTokens(Arrays.asList(tokens[0].token), disables);
             push_source(new FixedTokenSource(tokens), true);
+            produced = 1;
         } else if (m == __COUNTER__) {
             /* This could equivalently have been done by adding
              * a special Macro subclass which overrides getTokens(). */
@@ -951,63 +1243,100 @@ public class Preprocessor implements Closeable {
             };
             collector.replaceWithNewTokens(Arrays.asList(tokens[0].token), disables);
             push_source(new FixedTokenSource(tokens), true);
+            produced = 1;
         } else {
             List<MapSeg> mapping = new ArrayList<MapSeg>();
             MacroTokenSource macroTokenSource = new MacroTokenSource(m, args, mapping, disables);
             collector.replaceWithMapping(mapping, disables);
             push_source(macroTokenSource, true);
+            produced = macroTokenSource.produced.size();
         }
-
-        return true;
+        if (profile != null)
+            profile.add(call, produced, collector instanceof ActionCollectorImpl);
+        return produced;
     }
 
     /**
-     * Expands an argument.
+     * Expands the arguments of the given invocation.
+     *
+     * Arguments may contain further invocations, whose own arguments
+     * must be expanded first. Rather than recursing, we keep the
+     * pending invocations on an explicit stack, so the nesting depth
+     * is bounded by the heap rather than by the Java stack.
      */
     /* I'd rather this were done lazily, but doing so breaks spec. */
-    @Nonnull
-    /* pp */ List<TokenS> expand(@Nonnull List<TokenS> arg)
+    private void expand_arguments(@Nonnull MacroCall root)
             throws IOException,
             LexerException {
-        List<TokenS> expansion = new ArrayList<>();
-        TokenS space = null;
-        int deleteSpaceActionIndex = -1;
-
-        push_source(new FixedTokenSource(arg), false);
+        Deque<MacroCall> calls = new ArrayDeque<MacroCall>();
+        calls.push(root);
 
-        EXPANSION:
         for (;;) {
-            TokenS tok = expanded_token();
+            MacroCall call = calls.peek();
+            if (call.expansion == null) {
+                if (call.index == call.args.size()) {
+                    calls.pop();
+                    if (calls.isEmpty())
+                        return;
+                    /* A nested invocation: its expansion is read
+                     * back as part of the enclosing argument. */
+                    macro_expand(call);
+                    continue;
+                }
+                argument_begin(call);
+            }
+
+            TokenS tok = source_token();
             switch (tok.token.getType()) {
                 case EOF:
-                    break EXPANSION;
-/*
-                case WHITESPACE:
-                case CCOMMENT:
-                case CPPCOMMENT:
-                    space = tok;
-                    deleteSpaceActionIndex = collector.delete();
-                    break;
-*/
+                    argument_end(call);
+                    continue;
+                case IDENTIFIER:
+                    Macro m = macro_lookup(tok.token.getText());
+                    if (m == null || tok.disables.contains(m.getName()))
+                        break;
+                    MacroCall nested = macro_call(m, tok);
+                    if (nested == null)
+                        break;
+                    call.nested++;
+                    if (nested.args.isEmpty())
+                        macro_expand(nested);
+                    else
+                        calls.push(nested);
+                    continue;
                 default:
-                    /*
-                    if (space != null && !expansion.isEmpty()) {
-                        expansion.add(space);
-                        final TokenS finalSpace = space;
-                        collector.revert(deleteSpaceActionIndex, action -> new Skip(action.beforeEnv, finalSpace));
-                    }
-                    */
-                    expansion.add(tok);
-                    space = null;
-                    collector.skipLast();
                     break;
             }
+            call.expansion.add(tok);
+            collector.skipLast();
         }
+    }
 
+    /* Starts expanding the next argument of the given invocation. */
+    private void argument_begin(@Nonnull MacroCall call) {
+        Argument arg = call.args.get(call.index);
+        call.collector = collector;
+        if (collector instanceof ActionCollectorImpl)
+            collector = new ActionCollectorImpl(this, Collections.<Source>emptyList());
+        call.expansion = new ArrayList<TokenS>();
+        push_source(new FixedTokenSource(arg), false);
+    }
+
+    /* Finishes the argument started by argument_begin(). */
+    private void argument_end(@Nonnull MacroCall call)
+            throws IOException {
         // Always returns null.
         pop_source(false);
 
-        return expansion;
+        Argument arg = call.args.get(call.index);
+        arg.setExpansion(call.expansion);
+        if (collector instanceof ActionCollectorImpl)
+            arg.actions = ((ActionCollectorImpl) collector).actions;
+        collector = call.collector;
+
+        call.collector = null;
+        call.expansion = null;
+        call.index++;
     }
 
     /* processes a #define directive */
@@ -1028,6 +1357,7 @@ public class Preprocessor implements Closeable {
         }
 
         Macro m = new Macro(getSource(), name);
+        m.setLocation(tok.token.getFile(), tok.token.getLine());
         List<String> args;
 
         tok = source_token();
@@ -1218,12 +1548,39 @@ public class Preprocessor implements Closeable {
     protected boolean include(@Nonnull VirtualFile file, List<Token> producedTokens)
             throws IOException {
         // System.out.println("Try to include " + ((File)file).getAbsolutePath());
+        String macro = guards.get(file.getPath());
+        if (macro != null && macros.containsKey(macro)) {
+            if (getFeature(Feature.DEBUG))
+                LOG.debug("pp: skipping " + file + ", guarded by " + macro);
+            Events.resolveInclude(include_event, file.getPath(), true, false);
+            return true;
+        }
         if (!file.isFile())
             return false;
         if (getFeature(Feature.DEBUG))
             LOG.debug("pp: including " + file);
-        FileLexerSource fileLexerSource = (FileLexerSource)file.getSource();
+        IncludeGuard guard = new IncludeGuard(file.getPath(), states.size());
+        /* A cached file need not be opened at all. */
+        CachedTokenSource cachedTokenSource = (tokenCache != null) ? tokenCache.getSource(this, file) : null;
+        FileLexerSource fileLexerSource = null;
+        if (cachedTokenSource == null) {
+            long start = (metrics != null) ? System.nanoTime() : 0;
+            fileLexerSource = (FileLexerSource) file.getSource();
+            if (metrics != null)
+                metrics.add(Metrics.Phase.IO, start);
+            if (tokenCache != null)
+                cachedTokenSource = tokenCache.getSource(this, fileLexerSource);
+        }
+        if (cachedTokenSource != null) {
+            cachedTokenSource.producedTokens = producedTokens;
+            cachedTokenSource.guard = guard;
+            push_source(cachedTokenSource, true);
+            Events.resolveInclude(include_event, file.getPath(), false, cachedTokenSource.hit);
+            return true;
+        }
         fileLexerSource.producedTokens = producedTokens;
+        fileLexerSource.guard = guard;
+        Events.resolveInclude(include_event, file.getPath(), false, false);
 
         push_source(fileLexerSource, true);
         return true;
@@ -1247,6 +1604,81 @@ public class Preprocessor implements Closeable {
         return false;
     }
 
+    /* Searches the include paths in turn. */
+    private boolean include_search(@CheckForNull VirtualFile pdir, @Nonnull String name,
+            boolean quoted, List<Token> producedTokens)
+            throws IOException {
+        if (quoted) {
+            if (pdir != null) {
+                VirtualFile ifile = pdir.getChildFile(name);
+                if (include(ifile,producedTokens))
+                    return true;
+            }
+            if (include(quoteincludepath, name,producedTokens))
+                return true;
+        } else {
+            int idx = name.indexOf('/');
+            if (idx != -1) {
+                String frameworkName = name.substring(0, idx);
+                String headerName = name.substring(idx + 1);
+                String headerPath = frameworkName + ".framework/Headers/" + headerName;
+                if (include(frameworkspath, headerPath,producedTokens))
+                    return true;
+            }
+        }
+        return include(sysincludepath, name,producedTokens);
+    }
+
+    /* Lists the files which include_search() tries, in order. */
+    @Nonnull
+    private List<VirtualFile> include_candidates(@CheckForNull VirtualFile pdir, @Nonnull String name, boolean quoted) {
+        List<VirtualFile> candidates = new ArrayList<VirtualFile>();
+        if (quoted) {
+            if (pdir != null)
+                candidates.add(pdir.getChildFile(name));
+            for (String dir : quoteincludepath)
+                candidates.add(filesystem.getFile(dir, name));
+        } else {
+            int idx = name.indexOf('/');
+            if (idx != -1) {
+                String frameworkName = name.substring(0, idx);
+                String headerName = name.substring(idx + 1);
+                String headerPath = frameworkName + ".framework/Headers/" + headerName;
+                for (String dir : frameworkspath)
+                    candidates.add(filesystem.getFile(dir, headerPath));
+            }
+        }
+        for (String dir : sysincludepath)
+            candidates.add(filesystem.getFile(dir, name));
+        return candidates;
+    }
+
+    /* As include_search(), but remembers which candidate, if any, was found. */
+    private boolean include_cached(@CheckForNull VirtualFile pdir, @Nonnull String name,
+            boolean quoted, boolean next, List<Token> producedTokens)
+            throws IOException {
+        List<VirtualFile> candidates = include_candidates(pdir, name, quoted);
+        IncludeCache.Key key = new IncludeCache.Key(
+                (pdir == null) ? null : pdir.getPath(), name, quoted, next,
+                quoteincludepath, frameworkspath, sysincludepath);
+        Integer index = includeCache.get(key);
+        if (index != null) {
+            if (index < 0)
+                return false;
+            if (include(candidates.get(index), producedTokens))
+                return true;
+            /* The file has gone since; search again. */
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            if (include(candidates.get(i), producedTokens)) {
+                includeCache.put(key, i, candidates);
+                return true;
+            }
+        }
+        includeCache.put(key, -1, candidates);
+        return false;
+    }
+
     /**
      * Handles an include directive.
      *
@@ -1269,31 +1701,16 @@ public class Preprocessor implements Closeable {
         }
 
         VirtualFile pdir = null;
-        if (quoted) {
-            if (parent != null) {
-                VirtualFile pfile = filesystem.getFile(parent);
-                pdir = pfile.getParentFile();
-            }
-            if (pdir != null) {
-                VirtualFile ifile = pdir.getChildFile(name);
-                if (include(ifile,producedTokens))
-                    return;
-            }
-            if (include(quoteincludepath, name,producedTokens))
-                return;
-        } else {
-            int idx = name.indexOf('/');
-            if (idx != -1) {
-                String frameworkName = name.substring(0, idx);
-                String headerName = name.substring(idx + 1);
-                String headerPath = frameworkName + ".framework/Headers/" + headerName;
-                if (include(frameworkspath, headerPath,producedTokens))
-                    return;
-            }
+        if (quoted && parent != null) {
+            VirtualFile pfile = filesystem.getFile(parent);
+            pdir = pfile.getParentFile();
         }
-
-        if (include(sysincludepath, name,producedTokens))
+        if (includeCache != null) {
+            if (include_cached(pdir, name, quoted, next, producedTokens))
+                return;
+        } else if (include_search(pdir, name, quoted, producedTokens)) {
             return;
+        }
 
         StringBuilder buf = new StringBuilder();
         buf.append("File not found: ").append(name);
@@ -1381,13 +1798,25 @@ public class Preprocessor implements Closeable {
             }
 
             /* Do the inclusion. */
+            Source parent = source;
             List<Token> producedTokens = new ArrayList<>();
-            include(file, tok.token.getLine(), name, quoted, next, producedTokens);
+            long start = (metrics != null) ? System.nanoTime() : 0;
+            Object event = Events.beginInclude(name);
+            include_event = event;
+            try {
+                include(file, tok.token.getLine(), name, quoted, next, producedTokens);
+            } finally {
+                include_event = null;
+            }
+            if (metrics != null)
+                metrics.add(Metrics.Phase.INCLUDE, start);
+            Events.commitInclude(event);
             collector.replaceWithNewTokens(producedTokens, Empty.set());
 
             /* 'tok' is the 'nl' after the include. We use it after the
-             * #line directive. */
-            if (getFeature(Feature.LINEMARKERS))
+             * #line directive. If a guarded file was not reopened,
+             * there is no new source to mark. */
+            if (getFeature(Feature.LINEMARKERS) && source != parent)
                 return new TokenS(line_token(file, 1, source.getName(), " 1"), Empty.bag());
 
             // If a.h is x y z, it actually replaces #include <a.h>\n with \nx y z.
@@ -1526,6 +1955,25 @@ public class Preprocessor implements Closeable {
             warning(pptok, buf.toString());
     }
 
+    /**
+     * Looks up a macro for expansion.
+     *
+     * While a conditional is being evaluated, this also notes which
+     * definition each name resolved to, so that the result can be
+     * reused for as long as those definitions are unchanged.
+     */
+    @CheckForNull
+    private Macro macro_lookup(@Nonnull String name) {
+        Macro m = getMacro(name);
+        if (expr_depends != null) {
+            if (m == __COUNTER__)
+                expr_depends = null;	/* Not repeatable. */
+            else if (!expr_depends.containsKey(name))
+                expr_depends.put(name, m);
+        }
+        return m;
+    }
+
     /* This bypasses token() for #elif expressions.
      * If we don't do this, then isActive() == false
      * causes token() to simply chew the entire input line. */
@@ -1537,7 +1985,7 @@ public class Preprocessor implements Closeable {
             TokenS tok = source_token();
             // System.out.println("Source token is " + tok);
             if (tok.token.getType() == IDENTIFIER) {
-                Macro m = getMacro(tok.token.getText());
+                Macro m = macro_lookup(tok.token.getText());
                 if (m == null)
                     return tok;
                 if (tok.disables.contains(m.getName()))
@@ -1563,6 +2011,10 @@ public class Preprocessor implements Closeable {
 
     @CheckForNull
     private TokenS expr_token = null;
+    /* The macros referenced by the conditional being evaluated,
+     * or null if we are not evaluating a cacheable conditional. */
+    @CheckForNull
+    private Map<String, Macro> expr_depends = null;
 
     @Nonnull
     private TokenS expr_token()
@@ -1594,7 +2046,7 @@ public class Preprocessor implements Closeable {
                     tok = new TokenS(new Token(NUMBER, la.token.getFile(),
                             la.token.getLine(), la.token.getColumn(),
                             "0", new NumericValue(10, "0")), Empty.bag());
-                } else if (macros.containsKey(la.token.getText())) {
+                } else if (macro_lookup(la.token.getText()) != null) {
                     // System.out.println("Found macro");
                     tok = new TokenS(new Token(NUMBER, la.token.getFile(),
                             la.token.getLine(), la.token.getColumn(),
@@ -1833,6 +2285,99 @@ public class Preprocessor implements Closeable {
         return lhs;
     }
 
+    /**
+     * Evaluates the expression of an #if or #elif directive, and
+     * updates the given state accordingly.
+     *
+     * The line is read in full before it is expanded, and the result
+     * is remembered against the location of the directive. When the
+     * same directive is reached again, as happens in headers which
+     * are included many times, the result is reused provided that the
+     * line is unchanged and every macro consulted during the previous
+     * evaluation, including by defined(), still has the same
+     * definition.
+     *
+     * @return the NL token ending the directive.
+     */
+    @Nonnull
+    private TokenS condition(@Nonnull Token directive, @Nonnull State state)
+            throws IOException,
+            LexerException {
+        Source s = getSource();
+        List<TokenS> line = new ArrayList<TokenS>();
+        List<String> text = new ArrayList<String>();
+        TokenS tok;
+        LINE:
+        for (;;) {
+            tok = source_token();
+            switch (tok.token.getType()) {
+                case EOF:
+                    /* As in source_skipline(). */
+                    warning(tok.token.getLine(), tok.token.getColumn(),
+                            "No newline before end of file");
+                    tok = new TokenS(new Token(NL, tok.token.getFile(),
+                            tok.token.getLine(), tok.token.getColumn(),
+                            "\n"), tok.disables);
+                    break LINE;
+                case NL:
+                    break LINE;
+                case CCOMMENT:
+                case CPPCOMMENT:
+                case WHITESPACE:
+                    break;
+                default:
+                    text.add(tok.token.getText());
+                    break;
+            }
+            line.add(tok);
+        }
+
+        if (PreprocessorCommand.forText(directive.getText()) == PP_IF)
+            guard_conditional(s, IncludeGuard.getMacro(text));
+
+        String location = directive.getFile() + ":" + directive.getLine();
+        Condition condition = conditions.get(location);
+        if (condition == null || !condition.matches(text, macros)) {
+            int errors = this.diagnostics;
+            expr_depends = new HashMap<String, Macro>();
+            boolean value = condition_evaluate(line);
+            if (expr_depends != null && this.diagnostics == errors)
+                conditions.put(location, new Condition(text, expr_depends, value));
+            else
+                conditions.remove(location);
+            expr_depends = null;
+            states = states.with(0, state.withActive(value));
+        } else {
+            states = states.with(0, state.withActive(condition.getValue()));
+        }
+
+        return tok;
+    }
+
+    /* Expands and evaluates the tokens of a conditional. */
+    private boolean condition_evaluate(@Nonnull List<TokenS> line)
+            throws IOException,
+            LexerException {
+        FixedTokenSource source = new FixedTokenSource(line);
+        push_source(source, false);
+        try {
+            expr_token = null;
+            long value = expr(0);
+            TokenS tok = expr_token();
+            if (tok.token.getType() != EOF) {
+                warning(tok.token, "Unexpected nonwhite token");
+                /* Drain any partial expansion. */
+                while (tok.token.getType() != EOF)
+                    tok = source_token();
+            }
+            return value != 0;
+        } finally {
+            expr_token = null;
+            // Always returns null.
+            pop_source(false);
+        }
+    }
+
     @Nonnull
     private Token toWhitespace(@Nonnull Token tok) {
         String text = tok.getText();
@@ -1891,7 +2436,9 @@ public class Preprocessor implements Closeable {
                 try {
                     /* XXX Tell lexer to ignore warnings. */
                     s.setActive(false);
-                    tok = source_token();
+                    tok = source_skipped(s);
+                    if (tok == null)
+                        tok = source_token();
                 } finally {
                     /* XXX Tell lexer to stop ignoring warnings. */
                     s.setActive(true);
@@ -1905,6 +2452,14 @@ public class Preprocessor implements Closeable {
                     case WHITESPACE:
                         collector.skipLast();
                         return tok;
+                    case SKIPPED:
+                        /* Only the newlines survive, as for comments. */
+                        tok = new TokenS(toWhitespace(tok.token), Empty.bag());
+                        if (collector instanceof ActionCollectorImpl) {
+                            collector.replaceWithNewTokens(Collections.singletonList(tok.token), Empty.set());
+                            collector.directInsert(new Skip(((ActionCollectorImpl)collector).environment, tok));
+                        }
+                        return tok;
                     case CCOMMENT:
                     case CPPCOMMENT:
                         // Patch up to preserve whitespace.
@@ -1939,6 +2494,7 @@ public class Preprocessor implements Closeable {
                 }
             } else {
                 tok = source_token();
+                guard_token(tok);
             }
 
             LEX:
@@ -2043,275 +2599,274 @@ public class Preprocessor implements Closeable {
                     throw new InternalException("Bad token " + tok);
                 // break;
 
-                case HASH:
-                    tok = source_token_nonwhite();
-                    // (new Exception("here")).printStackTrace();
-                    switch (tok.token.getType()) {
-                        case NL:
-                            collector.delete();
-                            break LEX;	/* Some code has #\n */
-
-                        case IDENTIFIER:
-                            break;
-                        default:
+                case HASH: {
+                    long start = (metrics != null) ? System.nanoTime() : 0;
+                    try {
+                        tok = source_token_nonwhite();
+                        // (new Exception("here")).printStackTrace();
+                        switch (tok.token.getType()) {
+                            case NL:
+                                collector.delete();
+                                break LEX;	/* Some code has #\n */
+
+                            case IDENTIFIER:
+                                break;
+                            default:
+                                error(tok.token,
+                                        "Preprocessor directive not a word "
+                                        + tok.token.getText());
+                                TokenS ret = source_skipline(false);
+                                collector.skipLast();
+                                return ret;
+                        }
+                        PreprocessorCommand ppcmd = PreprocessorCommand.forText(tok.token.getText());
+                        IncludeGuard guard = guard(source);
+                        if (guard != null) {
+                            if (ppcmd == null)
+                                guard.token(states.size());
+                            else
+                                guard.directive(ppcmd, states.size());
+                        }
+                        if (ppcmd == null) {
                             error(tok.token,
-                                    "Preprocessor directive not a word "
+                                    "Unknown preprocessor directive "
                                     + tok.token.getText());
                             TokenS ret = source_skipline(false);
                             collector.skipLast();
                             return ret;
-                    }
-                    PreprocessorCommand ppcmd = PreprocessorCommand.forText(tok.token.getText());
-                    if (ppcmd == null) {
-                        error(tok.token,
-                                "Unknown preprocessor directive "
-                                + tok.token.getText());
-                        TokenS ret = source_skipline(false);
-                        collector.skipLast();
-                        return ret;
-                    }
-
-                    PP:
-                    switch (ppcmd) {
-
-                        case PP_DEFINE:
-                            if (!isActive()) {
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else {
-                                TokenS ret = define();
-                                collector.skipLast();
-                                return ret;
-                            }
-                            // break;
-
-                        case PP_UNDEF:
-                            if (!isActive()) {
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else {
-                                TokenS ret = undef();
-                                collector.skipLast();
-                                return ret;
-                            }
-                            // break;
+                        }
 
-                        case PP_INCLUDE:
-                            if (!isActive()) {
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else
-                                return include(false);
-                            // break;
-                        case PP_INCLUDE_NEXT:
-                            if (!isActive()) {
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            }
-                            if (!getFeature(Feature.INCLUDENEXT)) {
-                                error(tok.token,
-                                        "Directive include_next not enabled"
-                                );
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            }
-                            return include(true);
-                        // break;
+                        PP:
+                        switch (ppcmd) {
 
-                        case PP_WARNING:
-                        case PP_ERROR:
-                            if (!isActive()) {
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else
-                                error(tok.token, ppcmd == PP_ERROR);
-                            collector.delete();
-                            break;
+                            case PP_DEFINE:
+                                if (!isActive()) {
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                } else {
+                                    TokenS ret = define();
+                                    collector.skipLast();
+                                    return ret;
+                                }
+                                // break;
 
-                        case PP_IF:
-                            push_state();
-                            if (!isActive()) {
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            }
-                            expr_token = null;
-                            collectOnly = true;
-                            states = states.with(0, states.get(0).withActive(expr(0) != 0));
-                            tok = expr_token();	/* unget */
+                            case PP_UNDEF:
+                                if (!isActive()) {
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                } else {
+                                    TokenS ret = undef();
+                                    collector.skipLast();
+                                    return ret;
+                                }
+                                // break;
 
-                            if (tok.token.getType() == NL) {
-                                collectOnly = false;
-                                collector.skipLast();
-                                return tok;
-                            } else {
-                                TokenS ret = source_skipline(true);
-                                collectOnly = false;
-                                collector.skipLast();
-                                return ret;
-                            }
+                            case PP_INCLUDE:
+                                if (!isActive()) {
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                } else
+                                    return include(false);
+                                // break;
+                            case PP_INCLUDE_NEXT:
+                                if (!isActive()) {
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                }
+                                if (!getFeature(Feature.INCLUDENEXT)) {
+                                    error(tok.token,
+                                            "Directive include_next not enabled"
+                                    );
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                }
+                                return include(true);
                             // break;
 
-                        case PP_ELIF:
-                            State state = states.get(0);
-                            if (false) {
-                                /* Check for 'if' */
-                                ;
-                            } else if (state.sawElse()) {
-                                error(tok.token,
-                                        "#elif after #" + "else");
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else if (!state.isParentActive()) {
-                                /* Nested in skipped 'if' */
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else if (state.isActive()) {
-                                /* The 'if' part got executed. */
-                                states = states.with(0, state.withParentActive(false));
-                                /* This is like # else # if but with
-                                 * only one # end. */
-                                states = states.with(0, state.withActive(false));
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else {
-                                expr_token = null;
-                                collectOnly = true;
-                                states = states.with(0, state.withActive(expr(0) != 0));
-                                tok = expr_token();	/* unget */
-
-                                if (tok.token.getType() == NL) {
+                            case PP_WARNING:
+                            case PP_ERROR:
+                                if (!isActive()) {
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                } else
+                                    error(tok.token, ppcmd == PP_ERROR);
+                                collector.delete();
+                                break;
+
+                            case PP_IF:
+                                push_state();
+                                if (!isActive()) {
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                }
+                                {
+                                    collectOnly = true;
+                                    TokenS ret = condition(tok.token, states.get(0));
                                     collectOnly = false;
                                     collector.skipLast();
-                                    return tok;
+                                    return ret;
                                 }
-                                TokenS ret = source_skipline(true);
-                                collectOnly = false;
-                                collector.skipLast();
-                                return ret;
-                            }
-                            // break;
-
-                        case PP_ELSE:
-                            state = states.get(0);
-                            if (false)
-								/* Check for 'if' */ ;
-                            else if (state.sawElse()) {
-                                error(tok.token,
-                                        "#" + "else after #" + "else");
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else {
-                                states = states.with(0, state.withSawElse().withActive(!state.isActive()));
-                                TokenS ret = source_skipline(warnings.contains(Warning.ENDIF_LABELS));
-                                collector.skipLast();
-                                return ret;
-                            }
-                            // break;
-
-                        case PP_IFDEF:
-                            push_state();
-                            if (!isActive()) {
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else {
-                                tok = source_token_nonwhite();
-                                // System.out.println("ifdef " + tok);
-                                if (tok.token.getType() != IDENTIFIER) {
+                                // break;
+
+                            case PP_ELIF:
+                                State state = states.get(0);
+                                if (false) {
+                                    /* Check for 'if' */
+                                    ;
+                                } else if (state.sawElse()) {
                                     error(tok.token,
-                                            "Expected identifier, not "
-                                                    + tok.token.getText());
+                                            "#elif after #" + "else");
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                } else if (!state.isParentActive()) {
+                                    /* Nested in skipped 'if' */
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                } else if (state.isActive()) {
+                                    /* The 'if' part got executed. */
+                                    /* This is like # else # if but with
+                                     * only one # end. */
+                                    states = states.with(0, state.withParentActive(false).withActive(false));
                                     TokenS ret = source_skipline(false);
                                     collector.skipLast();
                                     return ret;
                                 } else {
-                                    String text = tok.token.getText();
-                                    boolean exists
-                                            = macros.containsKey(text);
-                                    states = states.with(0, states.get(0).withActive(exists));
-                                    TokenS ret = source_skipline(true);
+                                    collectOnly = true;
+                                    TokenS ret = condition(tok.token, state);
+                                    collectOnly = false;
                                     collector.skipLast();
                                     return ret;
                                 }
-                            }
-                            // break;
+                                // break;
 
-                        case PP_IFNDEF:
-                            push_state();
-                            if (!isActive()) {
-                                TokenS ret = source_skipline(false);
-                                collector.skipLast();
-                                return ret;
-                            } else {
-                                tok = source_token_nonwhite();
-                                if (tok.token.getType() != IDENTIFIER) {
+                            case PP_ELSE:
+                                state = states.get(0);
+                                if (false)
+    								/* Check for 'if' */ ;
+                                else if (state.sawElse()) {
                                     error(tok.token,
-                                            "Expected identifier, not "
-                                                    + tok.token.getText());
+                                            "#" + "else after #" + "else");
                                     TokenS ret = source_skipline(false);
                                     collector.skipLast();
                                     return ret;
                                 } else {
-                                    String text = tok.token.getText();
-                                    boolean exists
-                                            = macros.containsKey(text);
-                                    states = states.with(0, states.get(0).withActive(!exists));
-                                    TokenS ret = source_skipline(true);
+                                    states = states.with(0, state.withSawElse().withActive(!state.isActive()));
+                                    TokenS ret = source_skipline(warnings.contains(Warning.ENDIF_LABELS));
                                     collector.skipLast();
                                     return ret;
                                 }
-                            }
-                            // break;
+                                // break;
 
-                        case PP_ENDIF:{
-                            pop_state();
-                            TokenS ret = source_skipline(warnings.contains(Warning.ENDIF_LABELS));
-                            collector.skipLast();
-                            return ret;
-                    }
-                        // break;
+                            case PP_IFDEF:
+                                push_state();
+                                if (!isActive()) {
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                } else {
+                                    tok = source_token_nonwhite();
+                                    // System.out.println("ifdef " + tok);
+                                    if (tok.token.getType() != IDENTIFIER) {
+                                        error(tok.token,
+                                                "Expected identifier, not "
+                                                        + tok.token.getText());
+                                        TokenS ret = source_skipline(false);
+                                        collector.skipLast();
+                                        return ret;
+                                    } else {
+                                        String text = tok.token.getText();
+                                        guard_conditional(source, null);
+                                        boolean exists
+                                                = macros.containsKey(text);
+                                        states = states.with(0, states.get(0).withActive(exists));
+                                        TokenS ret = source_skipline(true);
+                                        collector.skipLast();
+                                        return ret;
+                                    }
+                                }
+                                // break;
 
-                        case PP_LINE: {
-                            TokenS ret = source_skipline(false);
-                            collector.skipLast();
-                            return ret;
+                            case PP_IFNDEF:
+                                push_state();
+                                if (!isActive()) {
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                } else {
+                                    tok = source_token_nonwhite();
+                                    if (tok.token.getType() != IDENTIFIER) {
+                                        error(tok.token,
+                                                "Expected identifier, not "
+                                                        + tok.token.getText());
+                                        TokenS ret = source_skipline(false);
+                                        collector.skipLast();
+                                        return ret;
+                                    } else {
+                                        String text = tok.token.getText();
+                                        guard_conditional(source, text);
+                                        boolean exists
+                                                = macros.containsKey(text);
+                                        states = states.with(0, states.get(0).withActive(!exists));
+                                        TokenS ret = source_skipline(true);
+                                        collector.skipLast();
+                                        return ret;
+                                    }
+                                }
+                                // break;
+
+                            case PP_ENDIF:{
+                                pop_state();
+                                TokenS ret = source_skipline(warnings.contains(Warning.ENDIF_LABELS));
+                                collector.skipLast();
+                                return ret;
                         }
-                        // break;
+                            // break;
 
-                        case PP_PRAGMA:
-                            if (!isActive()) {
+                            case PP_LINE: {
                                 TokenS ret = source_skipline(false);
                                 collector.skipLast();
                                 return ret;
                             }
-                            TokenS ret = pragma();
-                            collector.skipLast();
-                            return ret;
-                        // break;
+                            // break;
 
-                        default:
-                            /* Actual unknown directives are
-                             * processed above. If we get here,
-                             * we succeeded the map lookup but
-                             * failed to handle it. Therefore,
-                             * this is (unconditionally?) fatal. */
-                            // if (isActive()) /* XXX Could be warning. */
-                            throw new InternalException(
-                                    "Internal error: Unknown directive "
-                                    + tok);
-                        // return source_skipline(false);
+                            case PP_PRAGMA:
+                                if (!isActive()) {
+                                    TokenS ret = source_skipline(false);
+                                    collector.skipLast();
+                                    return ret;
+                                }
+                                TokenS ret = pragma();
+                                collector.skipLast();
+                                return ret;
+                            // break;
+
+                            default:
+                                /* Actual unknown directives are
+                                 * processed above. If we get here,
+                                 * we succeeded the map lookup but
+                                 * failed to handle it. Therefore,
+                                 * this is (unconditionally?) fatal. */
+                                // if (isActive()) /* XXX Could be warning. */
+                                throw new InternalException(
+                                        "Internal error: Unknown directive "
+                                        + tok);
+                            // return source_skipline(false);
+                        }
+                    } finally {
+                        /* The directive alone; an included file is timed as it is lexed. */
+                        if (metrics != null)
+                            metrics.add(Metrics.Phase.DIRECTIVE, start);
                     }
+                }
 
             }
         }
@@ -2347,6 +2902,29 @@ public class Preprocessor implements Closeable {
         return tok;
     }
 
+    /**
+     * Writes every remaining token to the given sink, up to but not
+     * including the EOF, and flushes it.
+     *
+     * The sink is not closed.
+     *
+     * @return the number of tokens written.
+     */
+    public long drainTo(@Nonnull TokenSink sink)
+            throws IOException,
+            LexerException {
+        long count = 0;
+        for (;;) {
+            Token tok = token().token;
+            if (tok.getType() == EOF)
+                break;
+            sink.write(tok);
+            count++;
+        }
+        sink.flush();
+        return count;
+    }
+
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
@@ -0,0 +1,308 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A virtual filesystem which answers {@link VirtualFile#isFile()}
+ * from an in-memory snapshot of directory listings.
+ *
+ * Each directory is listed at most once, the first time a file
+ * within it is queried. A name absent from the listing is
+ * reported as missing without touching the filesystem, which is
+ * the common case during an include path search. A name present
+ * in the listing is stat'ed once to rule out subdirectories.
+ *
+ * The snapshot does not notice changes on disk by itself. Callers
+ * may {@link #invalidate(String) invalidate} directories explicitly,
+ * or call {@link #startWatching()} to have a {@link WatchService}
+ * invalidate them as they change.
+ *
+ * This class is thread-safe.
+ */
+public class SnapshotFileSystem implements VirtualFileSystem, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotFileSystem.class);
+
+    /** Absolute directory path to the names it contains. */
+    private final ConcurrentMap<String, Set<String>> listings = new ConcurrentHashMap<String, Set<String>>();
+    /** Absolute path to isFile(), for names present in a listing. */
+    private final ConcurrentMap<String, Boolean> files = new ConcurrentHashMap<String, Boolean>();
+    private final Charset charset;
+    @CheckForNull
+    private WatchService watcher;
+    @CheckForNull
+    private Thread thread;
+
+    public SnapshotFileSystem(@Nonnull Charset charset) {
+        this.charset = charset;
+    }
+
+    public SnapshotFileSystem() {
+        this(Charset.defaultCharset());
+    }
+
+    @Override
+    public VirtualFile getFile(String path) {
+        return new SnapshotFile(path);
+    }
+
+    @Override
+    public VirtualFile getFile(String dir, String name) {
+        return new SnapshotFile(dir, name);
+    }
+
+    /**
+     * Starts a daemon thread which invalidates directories as
+     * they change on disk.
+     *
+     * Directories listed before this call are not watched until
+     * they are next listed, so this should normally be called
+     * before the filesystem is used.
+     */
+    public synchronized void startWatching() throws IOException {
+        if (watcher != null)
+            return;
+        final WatchService w = FileSystems.getDefault().newWatchService();
+        watcher = w;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(w);
+            }
+        }, "cpp-snapshot-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching directories, if {@link #startWatching()} was called.
+     */
+    @Override
+    public void close() throws IOException {
+        WatchService w;
+        Thread t;
+        synchronized (this) {
+            w = watcher;
+            t = thread;
+            watcher = null;
+            thread = null;
+        }
+        if (w != null)
+            w.close();
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Discards the listing of the given directory, and anything
+     * known about the files within it.
+     */
+    public synchronized void invalidate(@Nonnull String dir) {
+        String path = new File(dir).getAbsolutePath();
+        Set<String> names = listings.remove(path);
+        if (names != null)
+            for (String name : names)
+                files.remove(new File(path, name).getPath());
+    }
+
+    /* Invalidates the given directory and every directory beneath it. */
+    private synchronized void invalidateTree(@Nonnull String dir) {
+        String prefix = dir + File.separator;
+        for (String path : listings.keySet())
+            if (path.equals(dir) || path.startsWith(prefix))
+                invalidate(path);
+    }
+
+    /**
+     * Discards all directory listings.
+     */
+    public synchronized void invalidate() {
+        listings.clear();
+        files.clear();
+    }
+
+    /**
+     * Returns the number of directories currently listed.
+     */
+    public int size() {
+        return listings.size();
+    }
+
+    /* pp */ boolean isFile(@Nonnull File file) {
+        File abs = file.getAbsoluteFile();
+        String dir = abs.getParent();
+        if (dir == null)
+            return false;
+        if (!list(dir).contains(abs.getName()))
+            return false;
+        String path = abs.getPath();
+        Boolean isFile = files.get(path);
+        if (isFile == null) {
+            isFile = abs.isFile();
+            files.put(path, isFile);
+        }
+        return isFile;
+    }
+
+    @Nonnull
+    private Set<String> list(@Nonnull String dir) {
+        Set<String> names = listings.get(dir);
+        if (names != null)
+            return names;
+        // Listing under the lock means an invalidation cannot
+        // slip in between reading the directory and storing it.
+        synchronized (this) {
+            names = listings.get(dir);
+            if (names != null)
+                return names;
+            register(dir);
+            String[] list = new File(dir).list();
+            if (list == null)
+                names = Collections.emptySet();
+            else
+                names = new HashSet<String>(Arrays.asList(list));
+            listings.put(dir, names);
+            return names;
+        }
+    }
+
+    private void register(@Nonnull String dir) {
+        WatchService w = watcher;
+        if (w == null)
+            return;
+        // A missing directory is watched through its nearest
+        // existing ancestor; creating anything on the way to it
+        // invalidates its listing, and the next listing watches
+        // the next ancestor down.
+        for (Path path = Paths.get(dir); path != null; path = path.getParent()) {
+            try {
+                path.register(w,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                return;
+            } catch (NoSuchFileException e) {
+                continue;
+            } catch (IOException e) {
+                LOG.debug("Cannot watch " + path + ": " + e);
+                return;
+            } catch (ClosedWatchServiceException e) {
+                // Closed concurrently.
+                return;
+            }
+        }
+    }
+
+    private void watch(@Nonnull WatchService w) {
+        try {
+            for (;;) {
+                WatchKey key = w.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidate();
+                        continue;
+                    }
+                    // The entry may itself be a directory we listed,
+                    // or lead to one which was missing.
+                    Path child = dir.resolve((Path) event.context());
+                    invalidateTree(child.toString());
+                }
+                invalidate(dir.toString());
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Normal shutdown.
+        } catch (InterruptedException e) {
+            // Normal shutdown.
+        }
+    }
+
+    private class SnapshotFile extends File implements VirtualFile, TokenCache.Backed {
+
+        private static final long serialVersionUID = 1L;
+
+        public SnapshotFile(String path) {
+            super(path);
+        }
+
+        public SnapshotFile(String dir, String name) {
+            super(dir, name);
+        }
+
+        public SnapshotFile(File dir, String name) {
+            super(dir, name);
+        }
+
+        @Override
+        public boolean isFile() {
+            return SnapshotFileSystem.this.isFile(this);
+        }
+
+        @Override
+        public SnapshotFile getParentFile() {
+            String parent = getParent();
+            if (parent != null)
+                return new SnapshotFile(parent);
+            return new SnapshotFile(getAbsoluteFile().getParent());
+        }
+
+        @Override
+        public SnapshotFile getChildFile(String name) {
+            return new SnapshotFile(this, name);
+        }
+
+        @Override
+        public File getBackingFile() {
+            return this;
+        }
+
+        @Override
+        public Source getSource() throws IOException {
+            return new FileLexerSource(this, charset);
+        }
+    }
+
+}
@@ -210,6 +210,22 @@ public abstract class Source implements Iterable<TokenS>, Closeable {
             throws IOException,
             LexerException;
 
+    /**
+     * Passes over the text of an inactive conditional block, up to
+     * the next line which begins with '#'.
+     *
+     * Sources which cannot do this more cheaply than by returning
+     * tokens one at a time return null.
+     *
+     * @return a SKIPPED token holding the text passed over, or null.
+     */
+    @CheckForNull
+    /* pp */ TokenS skipped()
+            throws IOException,
+            LexerException {
+        return null;
+    }
+
     /**
      * Returns a token iterator for this Source.
      */
@@ -16,8 +16,6 @@
  */
 package org.anarres.cpp;
 
-import java.io.StringReader;
-
 /**
  * A Source for lexing a String.
  *
@@ -34,7 +32,7 @@ public class StringLexerSource extends LexerSource {
      *	honoured within the string.
      */
     public StringLexerSource(String string, boolean ppvalid) {
-        super(new StringReader(string), ppvalid);
+        super(string.toCharArray(), ppvalid);
     }
 
     /**
@@ -227,6 +227,7 @@ public final class Token implements Serializable {
     public static final int M_STRING = 298;
     public static final int P_LINE = 299;
     public static final int INVALID = 300;
+    public static final int SKIPPED = 301;
 
     /** The position-less space token. */
     /* pp */ static final Token space = new Token(WHITESPACE,null,-1, -1, " ");
@@ -0,0 +1,324 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.anarres.cpp.Token.*;
+
+/**
+ * A cache of lexed header files, which may be shared between
+ * {@link Preprocessor} instances, including on different threads.
+ *
+ * An included file whose size and modification time match a cached
+ * entry is replayed from the cached tokens rather than lexed again.
+ * Entries are evicted in least-recently-used order once their
+ * estimated total size exceeds the capacity.
+ *
+ * Errors and warnings issued by the lexer, such as for trigraphs, are
+ * kept with the tokens, and reported each time the token they belong
+ * to is replayed. Those in a skipped conditional block are never
+ * reported, as when the file is lexed afresh.
+ *
+ * @see Preprocessor#setTokenCache(TokenCache)
+ */
+public class TokenCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCache.class);
+
+    /** The default capacity, in bytes. */
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+
+    /* Rough per-token overhead of a Token, in bytes. */
+    private static final int TOKEN_WEIGHT = 48;
+
+    /**
+     * A file which is lexed from a {@link File} on disk, and which
+     * can name that file without being opened.
+     */
+    /* pp */ interface Backed {
+
+        @Nonnull
+        File getBackingFile();
+    }
+
+    /* An error or warning from the lexer, deferred until its token is replayed. */
+    /* pp */ static final class Diagnostic {
+
+        /* The index of the token being lexed when it was issued. */
+        /* pp */ final int index;
+        /* pp */ final int line;
+        /* pp */ final int column;
+        /* pp */ final String message;
+        /* pp */ final boolean error;
+
+        Diagnostic(int index, int line, int column, @Nonnull String message, boolean error) {
+            this.index = index;
+            this.line = line;
+            this.column = column;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    private static final Diagnostic[] NO_DIAGNOSTICS = new Diagnostic[0];
+
+    private static class Entry {
+
+        private final long length;
+        private final long lastModified;
+        private final Token[] tokens;
+        private final Diagnostic[] diagnostics;
+        private final long weight;
+
+        public Entry(long length, long lastModified, @Nonnull Token[] tokens, @Nonnull Diagnostic[] diagnostics) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.tokens = tokens;
+            this.diagnostics = diagnostics;
+            long w = 0;
+            for (Token tok : tokens)
+                w += TOKEN_WEIGHT + 2 * tok.getText().length();
+            this.weight = w;
+        }
+    }
+
+    private final long capacity;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity the estimated size, in bytes, of the tokens to retain.
+     */
+    public TokenCache(@Nonnegative long capacity) {
+        this.capacity = capacity;
+    }
+
+    public TokenCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    @Nonnegative
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /** Returns the estimated size, in bytes, of the cached tokens. */
+    @Nonnegative
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /** Returns the number of files in the cache. */
+    @Nonnegative
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Nonnegative
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Nonnegative
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /* The features of the preprocessor which change how a file is lexed. */
+    @Nonnull
+    private static String key(@Nonnull Preprocessor pp, @Nonnull File file) {
+        return (pp.getFeature(Feature.DIGRAPHS) ? "d" : "-")
+                + (pp.getFeature(Feature.TRIGRAPHS) ? "t" : "-")
+                + ":" + file.getPath();
+    }
+
+    @CheckForNull
+    private synchronized Entry get(@Nonnull String key, long length, long lastModified, boolean counted) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+            hits++;
+            return entry;
+        }
+        if (counted)
+            misses++;
+        return null;
+    }
+
+    private synchronized void put(@Nonnull String key, @Nonnull Entry entry) {
+        Entry old = entries.put(key, entry);
+        if (old != null)
+            weight -= old.weight;
+        weight += entry.weight;
+        Iterator<Entry> it = entries.values().iterator();
+        while (weight > capacity && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns a Source which replays the given file, if it is
+     * cached, without opening it.
+     *
+     * @return null if the file is not cached, or cannot be checked
+     *	without opening it; a miss is counted by
+     *	{@link #getSource(Preprocessor, FileLexerSource)}.
+     */
+    @CheckForNull
+    /* pp */ CachedTokenSource getSource(@Nonnull Preprocessor pp, @Nonnull VirtualFile file) {
+        if (!(file instanceof Backed))
+            return null;
+        File backing = ((Backed) file).getBackingFile();
+        Entry entry = get(key(pp, backing), backing.length(), backing.lastModified(), false);
+        if (entry == null)
+            return null;
+        CachedTokenSource result = new CachedTokenSource(file.getPath(), entry.tokens, entry.diagnostics);
+        result.hit = true;
+        return result;
+    }
+
+    /**
+     * Returns a Source for the same file as the given one.
+     *
+     * The given source is closed if the cached tokens are used, and
+     * otherwise lexed to the end to fill the cache.
+     */
+    @Nonnull
+    /* pp */ CachedTokenSource getSource(@Nonnull Preprocessor pp, @Nonnull FileLexerSource source)
+            throws IOException {
+        File file = source.getFile();
+        /* Sampled before reading, so that a concurrent change is seen next time. */
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String key = key(pp, file);
+        Entry entry = get(key, length, lastModified, true);
+        boolean hit = entry != null;
+        if (hit) {
+            source.close();
+        } else {
+            try {
+                entry = lex(pp, source, length, lastModified);
+            } catch (LexerException e) {
+                throw new IOException("Failed to lex " + file + ": " + e.getMessage(), e);
+            }
+            if (lastModified != 0L)
+                put(key, entry);
+            else if (LOG.isDebugEnabled())
+                LOG.debug("Not caching " + file + ": no modification time");
+        }
+        CachedTokenSource result = new CachedTokenSource(source.getPath(), entry.tokens, entry.diagnostics);
+        result.hit = hit;
+        return result;
+    }
+
+    /**
+     * Lexes the whole of a file, as the Preprocessor would.
+     *
+     * The Preprocessor puts the lexer into include mode after the
+     * name of an #include, #include_next or #import directive, until
+     * the end of that line. Include mode changes how header names,
+     * escapes and newlines are lexed, so the same is done here.
+     *
+     * The whole file is lexed, including any conditional blocks which
+     * will be skipped, so errors and warnings are kept rather than
+     * reported.
+     */
+    @Nonnull
+    private static Entry lex(@Nonnull Preprocessor pp, @Nonnull FileLexerSource source,
+            long length, long lastModified)
+            throws IOException,
+            LexerException {
+        final List<Token> tokens = new ArrayList<Token>();
+        final List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+        source.init(pp);
+        source.setListener(new PreprocessorListener() {
+            @Override
+            public void handleWarning(Source source, int line, int column, String msg) {
+                diagnostics.add(new Diagnostic(tokens.size(), line, column, msg, false));
+            }
+
+            @Override
+            public void handleError(Source source, int line, int column, String msg) {
+                diagnostics.add(new Diagnostic(tokens.size(), line, column, msg, true));
+            }
+
+            @Override
+            public void handleSourceChange(Source source, SourceChangeEvent event) {
+            }
+        });
+        try {
+            boolean directive = false;
+            for (;;) {
+                Token tok = source.token().token;
+                switch (tok.getType()) {
+                    case EOF:
+                        return new Entry(length, lastModified,
+                                tokens.toArray(new Token[tokens.size()]),
+                                diagnostics.isEmpty() ? NO_DIAGNOSTICS
+                                : diagnostics.toArray(new Diagnostic[diagnostics.size()]));
+                    case NL:
+                        source.setInclude(false);
+                        directive = false;
+                        break;
+                    case HASH:
+                        directive = true;
+                        break;
+                    case WHITESPACE:
+                    case CCOMMENT:
+                    case CPPCOMMENT:
+                        break;
+                    case IDENTIFIER:
+                        if (directive) {
+                            switch (tok.getText()) {
+                                case "include":
+                                case "include_next":
+                                case "import":
+                                    source.setInclude(true);
+                                    break;
+                            }
+                        }
+                        directive = false;
+                        break;
+                    default:
+                        directive = false;
+                        break;
+                }
+                tokens.add(tok);
+            }
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import javax.annotation.Nonnull;
+
+/**
+ * A consumer of the tokens produced by a Preprocessor.
+ *
+ * This is the push-style counterpart of {@link Preprocessor#token()},
+ * for callers which only want the output text.
+ *
+ * @see Preprocessor#drainTo(TokenSink)
+ * @see ChannelTokenSink
+ */
+public interface TokenSink extends Closeable {
+
+    /**
+     * Consumes a produced token.
+     */
+    public void write(@Nonnull Token tok)
+            throws IOException;
+
+    /**
+     * Writes out anything buffered.
+     */
+    public void flush()
+            throws IOException;
+
+}
@@ -129,6 +129,7 @@ import static org.anarres.cpp.Token.*;
         addTokenType(M_STRING, "M_STRING");
         addTokenType(P_LINE, "P_LINE");
         addTokenType(INVALID, "INVALID");
+        addTokenType(SKIPPED, "SKIPPED");
     }
 
     private final String name;
@@ -0,0 +1,365 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * Generates synthetic C sources and header trees for benchmarks
+ * and stress tests.
+ *
+ * The output is a main source, {@link #MAIN}, and a tree of headers
+ * in {@link #INCLUDE_DIR}, each header including up to
+ * {@link #setFanout(int) fanout} others. Macros are spread across
+ * the headers, and each macro expands the one before it, so that
+ * an expansion is up to {@link #setDepth(int) depth} levels deep.
+ * The main source invokes the macros, within conditionals nested up
+ * to {@link #setConditionalDepth(int) a given depth}.
+ *
+ * The output depends only on the settings, including the seed.
+ * Headers guarded with {@link GuardStyle#PRAGMA_ONCE} need
+ * {@link Feature#PRAGMA_ONCE}.
+ */
+public class WorkloadGenerator {
+
+    public static enum GuardStyle {
+        /** No include guard; a header is reread each time. */
+        NONE,
+        /** An #ifndef guard, which the Preprocessor detects. */
+        IFNDEF,
+        /** #pragma once. */
+        PRAGMA_ONCE
+    }
+
+    public static final String MAIN = "main.c";
+    public static final String INCLUDE_DIR = "include";
+
+    private long seed = 0;
+    private int lines = 1000;
+    private int macros = 64;
+    private int depth = 4;
+    private int arguments = 2;
+    private double pasteDensity = 0.1;
+    private double stringifyDensity = 0.1;
+    private int conditionalDepth = 2;
+    private int headers = 16;
+    private int fanout = 3;
+    private GuardStyle guardStyle = GuardStyle.IFNDEF;
+
+    private static int checkNonnegative(@Nonnull String name, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException(name + " must not be negative: " + value);
+        return value;
+    }
+
+    private static double checkDensity(@Nonnull String name, double value) {
+        if (value < 0 || value > 1)
+            throw new IllegalArgumentException(name + " must be between 0 and 1: " + value);
+        return value;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** Sets the number of lines of code in the main source. */
+    public void setLines(@Nonnegative int lines) {
+        this.lines = checkNonnegative("lines", lines);
+    }
+
+    public void setMacros(@Nonnegative int macros) {
+        this.macros = checkNonnegative("macros", macros);
+    }
+
+    /** Sets the longest chain of macros expanding one another. */
+    public void setDepth(@Nonnegative int depth) {
+        this.depth = Math.max(1, checkNonnegative("depth", depth));
+    }
+
+    /** Sets the number of parameters of function-like macros; 0 for only object-like macros. */
+    public void setArguments(@Nonnegative int arguments) {
+        this.arguments = checkNonnegative("arguments", arguments);
+    }
+
+    /** Sets the probability that a function-like macro pastes a parameter. */
+    public void setPasteDensity(double pasteDensity) {
+        this.pasteDensity = checkDensity("paste density", pasteDensity);
+    }
+
+    /** Sets the probability that a function-like macro stringifies a parameter. */
+    public void setStringifyDensity(double stringifyDensity) {
+        this.stringifyDensity = checkDensity("stringify density", stringifyDensity);
+    }
+
+    public void setConditionalDepth(@Nonnegative int conditionalDepth) {
+        this.conditionalDepth = checkNonnegative("conditional depth", conditionalDepth);
+    }
+
+    public void setHeaders(@Nonnegative int headers) {
+        this.headers = checkNonnegative("headers", headers);
+    }
+
+    /** Sets the number of headers each header includes. */
+    public void setFanout(@Nonnegative int fanout) {
+        this.fanout = checkNonnegative("fanout", fanout);
+    }
+
+    public void setGuardStyle(@Nonnull GuardStyle guardStyle) {
+        this.guardStyle = guardStyle;
+    }
+
+    private boolean isFunctionLike(int macro) {
+        return arguments > 0 && macro % 2 == 0;
+    }
+
+    @Nonnull
+    private static String header(int index) {
+        return "h" + index + ".h";
+    }
+
+    /* Arguments are always single tokens, so that any paste is valid. */
+    private void invocation(@Nonnull StringBuilder buf, int macro, @Nonnull List<String> args, @Nonnull Random random) {
+        buf.append("M").append(macro);
+        if (!isFunctionLike(macro))
+            return;
+        buf.append('(');
+        for (int i = 0; i < arguments; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append(args.get(random.nextInt(args.size())));
+        }
+        buf.append(')');
+    }
+
+    private void define(@Nonnull StringBuilder buf, int macro, @Nonnull Random random) {
+        List<String> params = new ArrayList<String>();
+        buf.append("#define M").append(macro);
+        if (isFunctionLike(macro)) {
+            buf.append('(');
+            for (int i = 0; i < arguments; i++) {
+                params.add("a" + i);
+                if (i > 0)
+                    buf.append(", ");
+                buf.append("a").append(i);
+            }
+            buf.append(')');
+        } else {
+            params.add("g" + macro);
+            params.add(Integer.toString(macro));
+        }
+        buf.append(' ');
+        if (macro % depth != 0 && macro > 0) {
+            invocation(buf, macro - 1, params, random);
+            buf.append(" + ");
+        }
+        buf.append("(").append(params.get(0)).append(" * ").append(macro).append(")");
+        if (isFunctionLike(macro)) {
+            if (random.nextDouble() < pasteDensity)
+                buf.append(" + p_ ## ").append(params.get(random.nextInt(params.size())));
+            if (random.nextDouble() < stringifyDensity)
+                buf.append(" + sizeof # ").append(params.get(random.nextInt(params.size())));
+        }
+        buf.append('\n');
+    }
+
+    @Nonnull
+    private String header(int index, @Nonnull Random random) {
+        StringBuilder buf = new StringBuilder();
+        String guard = "H" + index + "_H";
+        switch (guardStyle) {
+            case IFNDEF:
+                buf.append("#ifndef ").append(guard).append('\n');
+                buf.append("#define ").append(guard).append('\n');
+                break;
+            case PRAGMA_ONCE:
+                buf.append("#pragma once\n");
+                break;
+            default:
+                break;
+        }
+        for (int i = 1; i <= fanout; i++) {
+            int child = index * fanout + i;
+            if (child < headers)
+                buf.append("#include <").append(header(child)).append(">\n");
+        }
+        for (int macro = index; macro < macros; macro += headers)
+            define(buf, macro, random);
+        buf.append("extern int g").append(index).append(";\n");
+        if (guardStyle == GuardStyle.IFNDEF)
+            buf.append("#endif /* ").append(guard).append(" */\n");
+        return buf.toString();
+    }
+
+    @Nonnull
+    private String main(@Nonnull Random random) {
+        StringBuilder buf = new StringBuilder();
+        /* Each root twice, so that the guards are exercised. */
+        for (int index = 0; index < headers; index++) {
+            if (index > 0 && fanout > 0)
+                break;
+            buf.append("#include <").append(header(index)).append(">\n");
+            buf.append("#include <").append(header(index)).append(">\n");
+        }
+        if (headers == 0)
+            for (int macro = 0; macro < macros; macro++)
+                define(buf, macro, random);
+
+        List<String> args = Arrays.asList("x", "y", "z", "1", "2");
+        int open = 0;
+        /* Whether each open conditional has had its #else. */
+        boolean[] elsed = new boolean[conditionalDepth + 1];
+        for (int line = 0; line < lines; line++) {
+            double r = random.nextDouble();
+            if (r < 0.1 && open < conditionalDepth) {
+                if (macros > 0 && random.nextBoolean())
+                    buf.append("#ifdef M").append(random.nextInt(macros)).append('\n');
+                else
+                    buf.append("#if ").append(line).append(" % 7 > 3 || defined(X").append(line % 5).append(")\n");
+                elsed[++open] = false;
+            } else if (r < 0.15 && open > 0 && !elsed[open]) {
+                buf.append("#else\n");
+                elsed[open] = true;
+            } else if (r < 0.25 && open > 0) {
+                buf.append("#endif\n");
+                open--;
+            } else if (macros > 0) {
+                buf.append("int r").append(line).append(" = ");
+                invocation(buf, random.nextInt(macros), args, random);
+                buf.append(";\n");
+            } else {
+                buf.append("int r").append(line).append(" = ").append(line).append(";\n");
+            }
+        }
+        for (; open > 0; open--)
+            buf.append("#endif\n");
+        return buf.toString();
+    }
+
+    /**
+     * Generates the workload.
+     *
+     * @return A map from relative path to contents, starting with {@link #MAIN}.
+     */
+    @Nonnull
+    public Map<String, String> generate() {
+        Random random = new Random(seed);
+        Map<String, String> out = new LinkedHashMap<String, String>();
+        out.put(MAIN, main(random));
+        for (int index = 0; index < headers; index++)
+            out.put(INCLUDE_DIR + "/" + header(index), header(index, random));
+        return out;
+    }
+
+    /**
+     * Writes the workload into the given directory.
+     */
+    public void writeTo(@Nonnull File dir) throws IOException {
+        for (Map.Entry<String, String> e : generate().entrySet()) {
+            File file = new File(dir, e.getKey());
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), e.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Adds the workload to the given filesystem, under the given directory.
+     */
+    public void writeTo(@Nonnull MemoryFileSystem fs, @Nonnull String dir) {
+        for (Map.Entry<String, String> e : generate().entrySet())
+            fs.put(dir + "/" + e.getKey(), e.getValue());
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        OptionSpec<?> helpOption = parser.accepts("help",
+                "Displays command-line help.")
+                .forHelp();
+        OptionSpec<File> outputOption = parser.acceptsAll(Arrays.asList("output", "o"),
+                "Writes the workload into the given directory.")
+                .withRequiredArg().ofType(File.class).describedAs("dir");
+        OptionSpec<Long> seedOption = parser.accepts("seed",
+                "Sets the random seed.")
+                .withRequiredArg().ofType(Long.class).describedAs("seed").defaultsTo(0L);
+        OptionSpec<Integer> linesOption = parser.accepts("lines",
+                "Sets the number of lines in the main source.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n").defaultsTo(1000);
+        OptionSpec<Integer> macrosOption = parser.accepts("macros",
+                "Sets the number of macros.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n").defaultsTo(64);
+        OptionSpec<Integer> depthOption = parser.accepts("depth",
+                "Sets the depth of macro expansion.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n").defaultsTo(4);
+        OptionSpec<Integer> argumentsOption = parser.accepts("arguments",
+                "Sets the number of parameters of function-like macros.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n").defaultsTo(2);
+        OptionSpec<Double> pasteOption = parser.accepts("paste",
+                "Sets the probability that a function-like macro pastes.")
+                .withRequiredArg().ofType(Double.class).describedAs("p").defaultsTo(0.1);
+        OptionSpec<Double> stringifyOption = parser.accepts("stringify",
+                "Sets the probability that a function-like macro stringifies.")
+                .withRequiredArg().ofType(Double.class).describedAs("p").defaultsTo(0.1);
+        OptionSpec<Integer> conditionalsOption = parser.accepts("conditional-depth",
+                "Sets the maximum nesting of conditionals.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n").defaultsTo(2);
+        OptionSpec<Integer> headersOption = parser.accepts("headers",
+                "Sets the number of headers.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n").defaultsTo(16);
+        OptionSpec<Integer> fanoutOption = parser.accepts("fanout",
+                "Sets the number of headers each header includes.")
+                .withRequiredArg().ofType(Integer.class).describedAs("n").defaultsTo(3);
+        OptionSpec<String> guardOption = parser.accepts("guard",
+                "Sets the include guard style (none, ifndef, pragma-once).")
+                .withRequiredArg().ofType(String.class).describedAs("style").defaultsTo("ifndef");
+
+        OptionSet options = parser.parse(args);
+        if (options.has(helpOption) || !options.has(outputOption)) {
+            parser.printHelpOn(System.out);
+            return;
+        }
+
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setSeed(options.valueOf(seedOption));
+        generator.setLines(options.valueOf(linesOption));
+        generator.setMacros(options.valueOf(macrosOption));
+        generator.setDepth(options.valueOf(depthOption));
+        generator.setArguments(options.valueOf(argumentsOption));
+        generator.setPasteDensity(options.valueOf(pasteOption));
+        generator.setStringifyDensity(options.valueOf(stringifyOption));
+        generator.setConditionalDepth(options.valueOf(conditionalsOption));
+        generator.setHeaders(options.valueOf(headersOption));
+        generator.setFanout(options.valueOf(fanoutOption));
+        generator.setGuardStyle(GuardStyle.valueOf(options.valueOf(guardOption).toUpperCase(Locale.ROOT).replace('-', '_')));
+        File dir = options.valueOf(outputOption);
+        generator.writeTo(dir);
+        System.out.println("Wrote " + MAIN + " and " + options.valueOf(headersOption) + " headers to " + dir);
+    }
+}
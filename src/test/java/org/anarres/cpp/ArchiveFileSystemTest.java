@@ -0,0 +1,146 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveFileSystemTest {
+
+    private static void put(ZipOutputStream out, String name, String text, boolean stored) throws Exception {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(bytes.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    private static File archive() throws Exception {
+        File file = File.createTempFile("archive", ".zip");
+        file.deleteOnExit();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            out.putNextEntry(new ZipEntry("include/"));
+            out.closeEntry();
+            put(out, "include/a.h", "#include \"sys/b.h\"\nfrom_a __FILE__\n", true);
+            put(out, "include/sys/b.h", "#include \"../c.h\"\nfrom_b\n", false);
+            put(out, "include/c.h", "from_c \"\u00e9\"\n", true);
+            out.setComment("a comment");
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String preprocess(VirtualFileSystem fs, String input) throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.setListener(new DefaultPreprocessorListener());
+        pp.setFileSystem(fs);
+        pp.getSystemIncludePath().add("/include");
+        pp.addInput(new StringLexerSource(input, true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER || tok.getType() == Token.STRING)
+                out.append(tok.getText()).append(' ');
+        }
+        return out.toString().trim();
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("a/b", ArchiveFileSystem.normalize("/a//b/"));
+        assertEquals("a/c", ArchiveFileSystem.normalize("a/./b/../c"));
+        assertEquals("c", ArchiveFileSystem.normalize("a/../../c"));
+        assertEquals("", ArchiveFileSystem.normalize("/"));
+    }
+
+    @Test
+    public void testArchive() throws Exception {
+        ArchiveFileSystem fs = new ArchiveFileSystem(archive(), StandardCharsets.UTF_8);
+        try {
+            assertEquals(3, fs.size());
+            assertTrue(fs.getFile("include", "a.h").isFile());
+            assertTrue(fs.getFile("/include/sys/b.h").isFile());
+            assertFalse(fs.getFile("include").isFile());
+            assertFalse(fs.getFile("include", "d.h").isFile());
+
+            VirtualFile b = fs.getFile("include/sys/b.h");
+            assertEquals("b.h", b.getName());
+            assertEquals("include/sys", b.getParentFile().getPath());
+            assertEquals("include/c.h", b.getParentFile().getChildFile("../c.h").getPath());
+            assertNull(fs.getFile("/").getParentFile());
+
+            assertEquals("from_c \"\u00e9\" from_b from_a \"include/a.h\"",
+                    preprocess(fs, "#include <a.h>\n"));
+
+            /* Lexed sources outlive the mapping. */
+            Source source = fs.getFile("include/c.h").getSource();
+            fs.close();
+            assertEquals("from_c", source.token().token.getText());
+            source.close();
+        } finally {
+            fs.close();
+        }
+    }
+
+    @Test
+    public void testTokenCache() throws Exception {
+        ArchiveFileSystem fs = new ArchiveFileSystem(archive(), StandardCharsets.UTF_8);
+        try {
+            TokenCache cache = new TokenCache();
+            Preprocessor pp = new Preprocessor();
+            pp.setListener(new DefaultPreprocessorListener());
+            pp.setFileSystem(fs);
+            pp.setTokenCache(cache);
+            pp.getSystemIncludePath().add("include");
+            pp.addInput(new StringLexerSource("#include <c.h>\n#include <sys/b.h>\n", true));
+            StringBuilder out = new StringBuilder();
+            for (;;) {
+                Token tok = pp.token().token;
+                if (tok.getType() == Token.EOF)
+                    break;
+                if (tok.getType() == Token.IDENTIFIER)
+                    out.append(tok.getText()).append(' ');
+            }
+            assertEquals("from_c from_c from_b", out.toString().trim());
+            assertEquals(2, cache.size());
+        } finally {
+            fs.close();
+        }
+    }
+
+}
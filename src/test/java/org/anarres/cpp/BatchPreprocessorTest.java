@@ -0,0 +1,97 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchPreprocessorTest {
+
+    @Test
+    public void testBatch() throws Exception {
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < 40; i++)
+            inputs.add(new File("src/test/resources/test1.c"));
+        inputs.add(new File("src/test/resources/missing.c"));
+
+        BatchPreprocessor batch = new BatchPreprocessor(4);
+        batch.getSystemIncludePath().add("src/test/resources");
+        batch.getMacros().put("__JCPP__", "1");
+        BatchPreprocessor.Result result = batch.run(inputs, null);
+
+        assertEquals(41, result.getFiles());
+        assertEquals(Arrays.asList(new File("src/test/resources/missing.c")),
+                new ArrayList<File>(result.getFailures().keySet()));
+        assertTrue(result.getTokens() > 0);
+        assertEquals(0, result.getTokens() % 40);
+        /* Each header is lexed once, then shared: test0.h, and test1.h by two paths. */
+        assertEquals(3, batch.getTokenCache().size());
+        assertTrue(batch.getIncludeCache().getHits() > 0);
+    }
+
+    @Test
+    public void testOutput() throws Exception {
+        File outdir = Files.createTempDirectory("batch").toFile();
+        try {
+            BatchPreprocessor batch = new BatchPreprocessor(2);
+            batch.getSystemIncludePath().add("src/test/resources");
+            File input = new File("src/test/resources/test1.c");
+            BatchPreprocessor.Result result = batch.run(Arrays.asList(input), outdir);
+            assertTrue(result.getFailures().isEmpty());
+
+            Preprocessor pp = new Preprocessor(input);
+            pp.getSystemIncludePath().add("src/test/resources");
+            StringBuilder expected = new StringBuilder();
+            for (;;) {
+                Token tok = pp.token().token;
+                if (tok.getType() == Token.EOF)
+                    break;
+                expected.append(tok.getText());
+            }
+            File output = new File(outdir, input.getPath() + ".i");
+            assertEquals(expected.toString(), new String(Files.readAllBytes(output.toPath()), "UTF-8"));
+
+            /* The same file, by a path which would escape outdir. */
+            File escape = new File("..", new File("").getAbsoluteFile().getName() + "/" + input.getPath());
+            result = batch.run(Arrays.asList(escape), outdir);
+            assertEquals(Arrays.asList(escape), new ArrayList<File>(result.getFailures().keySet()));
+        } finally {
+            FileUtils.deleteDirectory(outdir);
+        }
+    }
+
+    @Test
+    public void testGetOutput() throws Exception {
+        File outdir = new File("out");
+        assertEquals(new File("out/a/b.c.i"), BatchPreprocessor.getOutput(new File("a/./c/../b.c"), outdir));
+        assertEquals(new File("out/a/b.c.i"), BatchPreprocessor.getOutput(new File("/a/b.c"), outdir));
+        try {
+            BatchPreprocessor.getOutput(new File("a/../../b.c"), outdir);
+            fail("Escaped the output directory");
+        } catch (IOException e) {
+        }
+    }
+}
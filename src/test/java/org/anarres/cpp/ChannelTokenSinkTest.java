@@ -0,0 +1,100 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelTokenSinkTest {
+
+    private static String preprocess(String input, boolean compress, boolean linemarkers, Feature... features)
+            throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addFeatures(features);
+        pp.setSystemIncludePath(Collections.singletonList("src/test/resources"));
+        pp.addInput(new StringLexerSource(input, true));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        /* A tiny buffer, to exercise draining in the middle of a token. */
+        ChannelTokenSink sink = new ChannelTokenSink(Channels.newChannel(out), 5);
+        sink.setCompressWhitespace(compress);
+        sink.setLinemarkers(linemarkers);
+        pp.drainTo(sink);
+        assertEquals(out.size(), sink.getBytesWritten());
+        sink.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testVerbatim() throws Exception {
+        String input = "#define S \"na\u00efve \u2603 \uD83D\uDE00\"\nconst char *s = S; /* caf\u00e9 */\n";
+        assertEquals("\nconst char *s = \"na\u00efve \u2603 \uD83D\uDE00\"; /* caf\u00e9 */\n",
+                preprocess(input, false, true));
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        assertEquals("int a;\nb\n",
+                preprocess("int   a; /* c */\n\n\n  b // trailing\n", true, true));
+    }
+
+    @Test
+    public void testLinemarkers() throws Exception {
+        String input = "#include <guard.h>\nx\n";
+        String marked = preprocess(input, true, true, Feature.LINEMARKERS);
+        assertTrue(marked, marked.contains("#line 1 \"src/test/resources/guard.h\""));
+        assertTrue(marked, marked.endsWith("guarded\n#line 2 \"<no file>\" 2\nx\n"));
+        assertEquals("guarded\nx\n", preprocess(input, true, false, Feature.LINEMARKERS));
+        assertFalse(preprocess(input, false, false, Feature.LINEMARKERS).contains("#line"));
+    }
+
+    @Test
+    public void testMain() throws Exception {
+        File file = File.createTempFile("sink", ".i");
+        try {
+            Main.Result result = Main.preprocess(new String[]{"-o", file.getPath(), "--record"}, "#define N 42\nN\n");
+            StringBuilder expected = new StringBuilder();
+            for (TokenS tok : result.produced)
+                expected.append(tok.token.getText());
+            assertEquals(expected.toString(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMainStreams() throws Exception {
+        File file = File.createTempFile("sink", ".i");
+        try {
+            Main.Result result = Main.preprocess(new String[]{"-o", file.getPath()}, "#define N 42\nN\n");
+            assertTrue(result.produced.isEmpty());
+            assertNull(result.actions);
+            assertTrue(Main.check(result));
+            assertEquals("\n42\n", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        } finally {
+            file.delete();
+        }
+    }
+}
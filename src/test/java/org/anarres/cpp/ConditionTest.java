@@ -0,0 +1,53 @@
+package org.anarres.cpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class ConditionTest {
+
+    private static List<String> preprocess(String input) throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.setSystemIncludePath(Collections.singletonList("src/test/resources"));
+        pp.addInput(new StringLexerSource(input, true));
+        List<String> out = new ArrayList<String>();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER)
+                out.add(tok.getText());
+        }
+        return out;
+    }
+
+    @Test
+    public void testRepeatedInclude() throws Exception {
+        List<String> out = preprocess(
+                "#define LEVEL 1\n"
+                + "#include <cond.h>\n"
+                + "#include <cond.h>\n"
+                + "#undef LEVEL\n"
+                + "#define LEVEL 2\n"
+                + "#include <cond.h>\n"
+                + "#define EXTRA\n"
+                + "#include <cond.h>\n"
+                + "#undef EXTRA\n"
+                + "#include <cond.h>\n");
+        assertEquals("[low, first, low, high, high_extra, high]", out.toString());
+    }
+
+    @Test
+    public void testIndirectDefinition() throws Exception {
+        List<String> out = preprocess(
+                "#define LEVEL DEPTH\n"
+                + "#define DEPTH 1\n"
+                + "#include <cond.h>\n"
+                + "#undef DEPTH\n"
+                + "#define DEPTH 3\n"
+                + "#include <cond.h>\n");
+        assertEquals("[low, first, high]", out.toString());
+    }
+}
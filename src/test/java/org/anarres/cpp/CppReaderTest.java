@@ -6,6 +6,7 @@ import java.util.Collections;
 import javax.annotation.Nonnull;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class CppReaderTest {
 
@@ -58,4 +59,39 @@ public class CppReaderTest {
         testCppReader("#include <once.c>\n", Feature.PRAGMA_ONCE, Feature.LINEMARKERS);
     }
 
+    private static CppReader newReader(String in, int bufsize) {
+        Preprocessor pp = new Preprocessor(new StringLexerSource(in, true));
+        pp.setSystemIncludePath(Collections.singletonList("src/test/resources"));
+        return new CppReader(pp, bufsize);
+    }
+
+    @Test
+    public void testBulkRead()
+            throws Exception {
+        String in = "#define long_macro_name(x) x + x + x\n"
+                + "#include <test0.h>\n"
+                + "int a = long_macro_name(1);\n/* comment */ char *s = \"some string\";\n";
+        StringBuilder expected = new StringBuilder();
+        CppReader r = newReader(in, 0);
+        for (int c = r.read(); c != -1; c = r.read())
+            expected.append((char) c);
+
+        for (int bufsize : new int[]{0, 1, 7, 4096}) {
+            for (int len : new int[]{1, 3, 64, 8192}) {
+                r = newReader(in, bufsize);
+                StringBuilder out = new StringBuilder();
+                char[] cbuf = new char[len + 2];
+                /* Mix single characters with bulk reads. */
+                out.append((char) r.read());
+                int n;
+                while ((n = r.read(cbuf, 1, len)) != -1) {
+                    assertTrue(n > 0 && n <= len);
+                    out.append(cbuf, 1, n);
+                }
+                assertEquals(-1, r.read());
+                assertEquals(expected.toString(), out.toString());
+            }
+        }
+    }
+
 }
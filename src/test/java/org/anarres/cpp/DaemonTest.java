@@ -0,0 +1,139 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DaemonTest {
+
+    private static final String SOURCE = "#define xy x y\\n#define add(x,y) x+y\\nadd(a b,xy)z\\n";
+
+    @Test
+    public void testRequests() throws Exception {
+        Daemon daemon = new Daemon(2);
+        JsonParser parser = new JsonParser();
+        try {
+            JsonObject response = daemon.handle(parser.parse(
+                    "{\"id\":1,\"op\":\"preprocess\",\"source\":\"" + SOURCE + "\"}").getAsJsonObject());
+            assertEquals(1, response.get("id").getAsInt());
+            assertEquals("\n\na b+x yz\n", response.get("output").getAsString());
+
+            response = daemon.handle(parser.parse(
+                    "{\"op\":\"forward\",\"source\":\"" + SOURCE + "\"}").getAsJsonObject());
+            assertEquals(11, response.get("produced").getAsJsonArray().size());
+            assertTrue(response.get("actions").getAsJsonArray().size() > 0);
+
+            /* The same change as the first case of Main.testBackward. */
+            response = daemon.handle(parser.parse(
+                    "{\"op\":\"backward\",\"source\":\"" + SOURCE + "\",\"changes\":"
+                    + "[null,null,[\"c\",\" \",\"d\"],null,[\"e\",\" \",\"f\"],null,null,null,null,[],null]}")
+                    .getAsJsonObject());
+            assertEquals("#define xy x y\n#define add(x,y) x+y\nadd(c d e f,xy)\n",
+                    response.get("original").getAsString());
+
+            response = daemon.handle(parser.parse(
+                    "{\"op\":\"backward\",\"source\":\"" + SOURCE + "\",\"changes\":[]}").getAsJsonObject());
+            assertTrue(response.has("error"));
+
+            response = daemon.handle(parser.parse("{\"op\":\"frobnicate\"}").getAsJsonObject());
+            assertTrue(response.has("error"));
+
+            assertEquals(2, daemon.getHistogram("backward").getCount());
+            assertEquals(1, daemon.getHistogram("forward").getCount());
+        } finally {
+            daemon.close();
+        }
+    }
+
+    @Test
+    public void testServe() throws Exception {
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < 20; i++)
+            requests.append("{\"id\":").append(i).append(",\"source\":\"#define N ").append(i).append("\\nN\\n\"}\n");
+        requests.append("not json\n");
+        requests.append("{\"id\":99,\"op\":\"shutdown\"}\n");
+        requests.append("{\"id\":100,\"source\":\"ignored\"}\n");
+
+        Daemon daemon = new Daemon(4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            daemon.serve(new ByteArrayInputStream(requests.toString().getBytes(StandardCharsets.UTF_8)), out);
+        } finally {
+            daemon.close();
+        }
+        assertTrue(daemon.isShutdown());
+
+        /* Responses may arrive in any order. */
+        Map<Integer, String> outputs = new HashMap<Integer, String>();
+        int errors = 0;
+        JsonParser parser = new JsonParser();
+        for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            JsonObject response = parser.parse(line).getAsJsonObject();
+            if (response.has("error"))
+                errors++;
+            else if (response.has("output"))
+                outputs.put(response.get("id").getAsInt(), response.get("output").getAsString());
+        }
+        assertEquals(1, errors);
+        assertEquals(20, outputs.size());
+        for (int i = 0; i < 20; i++)
+            assertEquals("\n" + i + "\n", outputs.get(i));
+        assertFalse(outputs.containsKey(100));
+        assertEquals(20, daemon.getHistogram("preprocess").getCount());
+    }
+
+    @Test
+    public void testArgs() throws Exception {
+        Daemon daemon = new Daemon(1);
+        JsonParser parser = new JsonParser();
+        try {
+            JsonObject response = daemon.handle(parser.parse(
+                    "{\"args\":[\"-DN=4\",\"--undefine\",\"M\",\"-w\"],\"source\":\"N M\"}").getAsJsonObject());
+            assertEquals("4 M", response.get("output").getAsString());
+
+            for (String args : new String[]{
+                "\"-o\",\"out.i\"", "\"--save-prelude\",\"out.bin\"", "\"--sav\",\"out.bin\"",
+                "\"--prelude\",\"in.bin\"", "\"--help\"", "\"--metrics\""}) {
+                response = daemon.handle(parser.parse(
+                        "{\"args\":[" + args + "],\"source\":\"x\"}").getAsJsonObject());
+                assertTrue(args, response.get("error").getAsString().startsWith("Unsupported args"));
+            }
+        } finally {
+            daemon.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPortNeedsToken() throws Exception {
+        Daemon daemon = new Daemon(1);
+        try {
+            daemon.serve(0);
+        } finally {
+            daemon.close();
+        }
+    }
+}
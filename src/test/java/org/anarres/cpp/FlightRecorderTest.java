@@ -0,0 +1,156 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.pcollections.ConsPStack;
+import org.pcollections.PSequence;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderTest {
+
+    @Test
+    public void testEvents() throws Exception {
+        File dir = Files.createTempDirectory("jfr").toFile();
+        Files.write(new File(dir, "a.h").toPath(), "#define f(x) (x + 1)\n".getBytes(StandardCharsets.UTF_8));
+        String source = "#include <a.h>\n"
+                + "f(2) f(f(3))\n";
+
+        Map<String, List<RecordedEvent>> events = new HashMap<String, List<RecordedEvent>>();
+        Path file = Files.createTempFile("events", ".jfr");
+        Recording recording = new Recording();
+        try {
+            recording.enable(MacroExpansionEvent.class);
+            recording.enable(IncludeEvent.class);
+            recording.enable(BackwardStrategyEvent.class);
+            recording.enable(ForwardCheckEvent.class);
+            recording.start();
+
+            Main.Result result = Main.preprocess(new String[]{"-I", dir.getPath()}, source);
+            List<PSequence<TokenS>> changes = new ArrayList<PSequence<TokenS>>();
+            for (TokenS tok : result.produced)
+                changes.add(ConsPStack.singleton(tok));
+            assertNotNull(new Backward(result.preprocessor).backward(changes, result.actions));
+
+            recording.stop();
+            recording.dump(file);
+        } finally {
+            recording.close();
+        }
+        try {
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                String name = event.getEventType().getName();
+                if (!events.containsKey(name))
+                    events.put(name, new ArrayList<RecordedEvent>());
+                events.get(name).add(event);
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        /* Forward checks expand f again, but the nested f(3) is
+         * always expanded as an argument, not by macro(). */
+        List<RecordedEvent> macros = events.get("org.anarres.cpp.MacroExpansion");
+        assertNotNull(macros);
+        assertTrue(macros.size() >= 2);
+        for (RecordedEvent event : macros) {
+            assertEquals("f", event.getString("macro"));
+            assertEquals(1, event.getInt("arguments"));
+            assertTrue(event.getInt("produced") >= 7);
+        }
+
+        List<RecordedEvent> includes = events.get("org.anarres.cpp.Include");
+        assertNotNull(includes);
+        assertFalse(includes.isEmpty());
+        assertEquals("a.h", includes.get(0).getString("name"));
+        assertEquals(new File(dir, "a.h").getPath(), includes.get(0).getString("path"));
+        assertFalse(includes.get(0).getBoolean("cacheHit"));
+
+        List<RecordedEvent> strategies = events.get("org.anarres.cpp.BackwardStrategy");
+        assertNotNull(strategies);
+        boolean success = false;
+        for (RecordedEvent event : strategies) {
+            assertNotNull(event.getString("strategy"));
+            success |= event.getBoolean("success");
+        }
+        assertTrue(success);
+
+        List<RecordedEvent> checks = events.get("org.anarres.cpp.ForwardCheck");
+        assertNotNull(checks);
+        for (RecordedEvent event : checks)
+            assertNotNull(event.getString("outcome"));
+    }
+
+    /* Loads this package afresh, as if jdk.jfr were not in the runtime. */
+    private static class NoFlightRecorderClassLoader extends URLClassLoader {
+
+        NoFlightRecorderClassLoader() {
+            super(new URL[]{Preprocessor.class.getProtectionDomain().getCodeSource().getLocation()},
+                    FlightRecorderTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                if (name.startsWith("jdk.jfr."))
+                    throw new ClassNotFoundException(name);
+                if (!name.startsWith("org.anarres.cpp."))
+                    return super.loadClass(name, resolve);
+                Class<?> c = findLoadedClass(name);
+                if (c == null)
+                    c = findClass(name);
+                if (resolve)
+                    resolveClass(c);
+                return c;
+            }
+        }
+    }
+
+    @Test
+    public void testWithoutFlightRecorder() throws Exception {
+        ClassLoader loader = new NoFlightRecorderClassLoader();
+        Class<?> main = loader.loadClass(Main.class.getName());
+        Method preprocess = main.getDeclaredMethod("preprocess", String[].class, String.class);
+        Object result = preprocess.invoke(null, new String[0], "#define f(x) (x + 1)\nf(f(2))\n");
+        assertNotNull(result);
+        Field produced = result.getClass().getDeclaredField("produced");
+        produced.setAccessible(true);
+        assertFalse(((List<?>) produced.get(result)).isEmpty());
+
+        Method check = main.getDeclaredMethod("checkIdentityChange", result.getClass());
+        check.setAccessible(true);
+        assertTrue((Boolean) check.invoke(null, result));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InactiveBlockTest {
+
+    private static final String INPUT
+            = "#if 0\n"
+            + "  don't\n"
+            + "  \"#x\" '#' /*\n"
+            + "# not a directive\n"
+            + "*/ stuff\n"
+            + "#  if 1\n"
+            + "nested\n"
+            + "#  endif\n"
+            + "// # comment\n"
+            + "\t#else\n"
+            + "yes\n"
+            + "#endif\n"
+            + "after\n";
+
+    @Test
+    public void testSkip() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addInput(new StringLexerSource(INPUT, true));
+        List<String> out = new ArrayList<String>();
+        int newlines = 0;
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER)
+                out.add(tok.getText() + "@" + tok.getLine());
+            for (char c : tok.getText().toCharArray())
+                if (c == '\n')
+                    newlines++;
+        }
+        assertEquals("[yes@11, after@13]", out.toString());
+        assertEquals(13, newlines);
+    }
+
+    @Test
+    public void testActions() throws Exception {
+        Main.Result result = Main.preprocess(new String[0], INPUT);
+        StringBuilder original = new StringBuilder();
+        for (TokenS tok : result.original)
+            original.append(tok.token.getText());
+        assertEquals(INPUT, original.toString());
+        assertTrue(Main.checkSelfConsistency(result));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class IncludeCacheTest {
+
+    private static String preprocess(IncludeCache cache, String input, File... dirs) throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.setListener(new DefaultPreprocessorListener());
+        pp.setIncludeCache(cache);
+        for (File dir : dirs)
+            pp.getSystemIncludePath().add(dir.getPath());
+        pp.addInput(new StringLexerSource(input, true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER)
+                out.append(tok.getText()).append(' ');
+        }
+        return out.toString().trim();
+    }
+
+    private static void write(File file, String text) throws Exception {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* Makes the change visible whatever the file system's timestamp granularity. */
+    private static void touch(File dir) {
+        dir.setLastModified(dir.lastModified() + 10000);
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        File root = Files.createTempDirectory("includecache").toFile();
+        File a = new File(root, "a");
+        File b = new File(root, "b");
+        File c = new File(root, "c");
+        for (File dir : Arrays.asList(a, b, c))
+            dir.mkdir();
+        write(new File(c, "x.h"), "from_c\n");
+
+        IncludeCache cache = new IncludeCache();
+        cache.setCheckInterval(0);
+        assertEquals("from_c from_c", preprocess(cache, "#include <x.h>\n#include <x.h>\n", a, b, c));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        /* Shared, and with a negative entry. */
+        assertEquals("from_c", preprocess(cache, "#include <x.h>\n#include <y.h>\n", a, b, c));
+        assertEquals("from_c", preprocess(cache, "#include <x.h>\n#include <y.h>\n", a, b, c));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getMisses());
+        assertEquals(4, cache.getHits());
+
+        /* A different path is a different resolution. */
+        assertEquals("", preprocess(cache, "#include <x.h>\n", a, b));
+        assertEquals(3, cache.size());
+
+        /* New files are noticed through the directory. */
+        write(new File(a, "x.h"), "from_a\n");
+        write(new File(b, "y.h"), "from_b\n");
+        touch(a);
+        touch(b);
+        assertEquals("from_a from_b", preprocess(cache, "#include <x.h>\n#include <y.h>\n", a, b, c));
+
+        /* A vanished file is searched for again. */
+        new File(a, "x.h").delete();
+        assertEquals("from_c", preprocess(cache, "#include <x.h>\n", a, b, c));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testQuoted() throws Exception {
+        File root = Files.createTempDirectory("includecache").toFile();
+        File sub = new File(root, "sub");
+        sub.mkdir();
+        write(new File(root, "q.h"), "outer\n");
+        write(new File(sub, "q.h"), "inner\n");
+        write(new File(root, "main.h"), "#include \"q.h\"\n");
+        write(new File(sub, "main.h"), "#include \"q.h\"\n");
+
+        /* The same name resolves relative to each including file. */
+        IncludeCache cache = new IncludeCache();
+        assertEquals("outer inner",
+                preprocess(cache, "#include <main.h>\n#include <sub/main.h>\n", root));
+        assertEquals(4, cache.size());
+    }
+}
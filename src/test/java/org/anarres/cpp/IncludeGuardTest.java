@@ -0,0 +1,93 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncludeGuardTest {
+
+    private static class CountingListener extends DefaultPreprocessorListener {
+
+        private final List<String> pushed = new ArrayList<String>();
+
+        @Override
+        public void handleSourceChange(Source source, SourceChangeEvent event) {
+            if (event == SourceChangeEvent.PUSH && source instanceof FileLexerSource)
+                pushed.add(new java.io.File(source.getPath()).getName());
+        }
+    }
+
+    private static String preprocess(Preprocessor pp, String input) throws Exception {
+        pp.setSystemIncludePath(Collections.singletonList("src/test/resources"));
+        pp.addInput(new StringLexerSource(input, true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER)
+                out.append(tok.getText()).append(' ');
+        }
+        return out.toString().trim();
+    }
+
+    @Test
+    public void testGuarded() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        CountingListener listener = new CountingListener();
+        pp.setListener(listener);
+        String out = preprocess(pp,
+                "#include <guard.h>\n"
+                + "#include <guard.h>\n"
+                + "#include <guard.h>\n"
+                + "#undef GUARD_H\n"
+                + "#include <guard.h>\n"
+                + "#include <guard.h>\n");
+        assertEquals("guarded guarded", out);
+        assertEquals("[guard.h, guard.h]", listener.pushed.toString());
+    }
+
+    @Test
+    public void testNotGuarded() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        CountingListener listener = new CountingListener();
+        pp.setListener(listener);
+        String out = preprocess(pp,
+                "#include <notguard.h>\n"
+                + "#include <notguard.h>\n");
+        assertEquals("first always always", out);
+        assertEquals("[notguard.h, notguard.h]", listener.pushed.toString());
+    }
+
+    @Test
+    public void testActions() throws Exception {
+        Main.Result result = Main.preprocess(new String[]{"-I", "src/test/resources"},
+                "#include <guard.h>\n"
+                + "#include <guard.h>\n"
+                + "after\n");
+        StringBuilder out = new StringBuilder();
+        for (TokenS tok : result.produced)
+            out.append(tok.token.getText());
+        assertEquals("\n/* A guarded header. */\n\n\nguarded\n\n\nafter\n", out.toString());
+        assertTrue(Main.checkSelfConsistency(result));
+    }
+}
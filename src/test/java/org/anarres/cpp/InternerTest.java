@@ -0,0 +1,63 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class InternerTest {
+
+    @Test
+    public void testIntern() {
+        Interner interner = new Interner();
+        String a = interner.intern(new StringBuilder("foo"));
+        assertEquals("foo", a);
+        assertSame(a, interner.intern(new StringBuilder("foo")));
+        assertNotSame(a, interner.intern("bar"));
+        assertEquals(2, interner.size());
+
+        /* Survives growth of the table. */
+        List<String> all = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++)
+            all.add(interner.intern("id" + i));
+        for (int i = 0; i < 5000; i++)
+            assertSame(all.get(i), interner.intern(new StringBuilder("id").append(i)));
+        assertSame(a, interner.intern("foo"));
+        assertEquals(5002, interner.size());
+    }
+
+    @Test
+    public void testLexer() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addInput(new StringLexerSource("#define foo bar\nfoo foo bar\n", true));
+        List<Token> identifiers = new ArrayList<Token>();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER)
+                identifiers.add(tok);
+        }
+        assertEquals(3, identifiers.size());
+        for (Token tok : identifiers)
+            assertSame(identifiers.get(0).getText(), tok.getText());
+    }
+}
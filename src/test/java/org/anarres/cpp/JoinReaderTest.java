@@ -1,8 +1,14 @@
 package org.anarres.cpp;
 
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class JoinReaderTest {
 
@@ -38,4 +44,60 @@ public class JoinReaderTest {
         testJoinReader("foo??/\nbar", "foobar\n", true);
     }
 
+    @Test
+    public void testSpan()
+            throws Exception {
+        boolean[] letters = new boolean[128];
+        for (char c = 'a'; c <= 'z'; c++)
+            letters[c] = true;
+        JoinReader j = new JoinReader("abc def\\\nghi".toCharArray(), false);
+        StringBuilder text = new StringBuilder();
+        assertEquals(3, j.span(text, letters));
+        assertEquals(0, j.span(text, letters));
+        assertEquals(' ', j.read());
+        assertEquals(3, j.span(text, letters));
+        /* The splice is left to read(). */
+        assertEquals('g', j.read());
+        assertEquals(2, j.span(text, letters));
+        assertEquals("abcdefhi", text.toString());
+        assertEquals('\n', j.read());
+        assertEquals(-1, j.read());
+    }
+
+    /* Returns at most three characters per read. */
+    private static class TrickleReader extends FilterReader {
+
+        TrickleReader(Reader in) {
+            super(in);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(len, 3));
+        }
+    }
+
+    private static List<String> lex(LexerSource s) throws Exception {
+        List<String> out = new ArrayList<String>();
+        for (;;) {
+            Token tok = s.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            out.add(tok.getType() + ":" + tok.getText() + "@" + tok.getLine() + ":" + tok.getColumn());
+        }
+        return out;
+    }
+
+    @Test
+    public void testWindow()
+            throws Exception {
+        String in = "#define foo_bar(x) \"x\\\n\" /* a ?? comment\n */ x\n"
+                + "\tint  identifier_\\\nspliced = 'c'; // to the end\n"
+                + "#include <sys/types.h>\n";
+        List<String> expected = lex(new LexerSource(new StringReader(in), true));
+        assertEquals(expected, lex(new LexerSource(new TrickleReader(new StringReader(in)), true)));
+        assertEquals(expected, lex(new LexerSource(in.toCharArray(), true)));
+        assertTrue(expected.contains(Token.IDENTIFIER + ":identifier_spliced@4:6"));
+    }
+
 }
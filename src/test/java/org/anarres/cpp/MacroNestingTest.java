@@ -0,0 +1,79 @@
+package org.anarres.cpp;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+public class MacroNestingTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MacroNestingTest.class);
+
+    private static String nest(String name, int depth) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < depth; i++)
+            buf.append(name).append('(');
+        buf.append("1");
+        for (int i = 0; i < depth; i++)
+            buf.append(')');
+        return buf.toString();
+    }
+
+    private static String preprocess(String input) throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addInput(new StringLexerSource(input, true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            out.append(tok.getText());
+        }
+        return out.toString();
+    }
+
+    /* Run on a deliberately small stack, so that recursion
+     * proportional to the nesting depth would overflow. */
+    private static String preprocessOnSmallStack(final String input) throws Exception {
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(preprocess(input));
+                } catch (Throwable t) {
+                    result.set(t);
+                }
+            }
+        }, "nesting", 256 * 1024);
+        thread.start();
+        thread.join();
+        Object out = result.get();
+        if (out instanceof Throwable)
+            throw new AssertionError(out);
+        return (String) out;
+    }
+
+    @Test
+    public void testNested() throws Exception {
+        String out = preprocess("#define f(x) [x]\n" + nest("f", 3) + "\n");
+        assertEquals("\n[[[1]]]\n", out);
+    }
+
+    @Test
+    public void testDeeplyNested() throws Exception {
+        int depth = 500;
+        String out = preprocessOnSmallStack("#define f(x) x\n" + nest("f", depth) + "\n");
+        LOG.info("Depth " + depth + " expanded to " + out.trim());
+        assertEquals("\n1\n", out);
+    }
+
+    @Test
+    public void testDeeplyNestedMixed() throws Exception {
+        int depth = 500;
+        String out = preprocessOnSmallStack("#define f(x) g(x)\n#define g(x) (x)\n"
+                + nest("f", depth) + "\n");
+        assertEquals("\n\n" + nest("", depth) + "\n", out);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MacroProfileTest {
+
+    @Test
+    public void testProfile() throws Exception {
+        String source = "#define inc(x) x + 1\n"
+                + "#define TWO 2\n"
+                + "inc(TWO) inc(inc(TWO))\n"
+                + "#undef TWO\n"
+                + "#define TWO (1 + 1)\n"
+                + "TWO\n";
+        Main.Result result = Main.preprocess(new String[]{"--macro-profile", "10", "--macro-profile-sort", "nested"}, source);
+        MacroProfile profile = result.preprocessor.getMacroProfile();
+        assertNotNull(profile);
+        assertEquals(3, profile.getEntries().size());
+
+        List<MacroProfile.Entry> top = profile.getTop(MacroProfile.Column.EXPANSIONS, 10);
+        MacroProfile.Entry inc = top.get(0);
+        assertEquals("inc", inc.getName());
+        assertEquals(1, inc.getLine());
+        assertEquals(3, inc.get(MacroProfile.Column.EXPANSIONS));
+        /* TWO, inc(TWO) and TWO again within that argument. */
+        assertEquals(1 + 4 + 1, inc.get(MacroProfile.Column.ARGUMENTS));
+        assertEquals(3, inc.get(MacroProfile.Column.NESTED));
+        assertEquals("<input>:1", inc.getLocation());
+        assertTrue(inc.get(MacroProfile.Column.PRODUCED) > 0);
+        assertTrue(inc.get(MacroProfile.Column.REPLACES) >= 3);
+        assertTrue(inc.get(MacroProfile.Column.TIME) > 0);
+
+        /* Each definition of TWO is kept apart. */
+        MacroProfile.Entry first = top.get(1);
+        MacroProfile.Entry second = top.get(2);
+        assertEquals("TWO", first.getName());
+        assertEquals(2, first.getLine());
+        assertEquals(2, first.get(MacroProfile.Column.EXPANSIONS));
+        assertEquals(5, second.getLine());
+        assertEquals(1, second.get(MacroProfile.Column.EXPANSIONS));
+        assertEquals(7, second.get(MacroProfile.Column.PRODUCED));
+
+        assertEquals(1, profile.getTop(MacroProfile.Column.TIME, 1).size());
+
+        String report = profile.report(MacroProfile.Column.NESTED, 2);
+        assertEquals(3, report.split("\n").length);
+        assertTrue(report, report.split("\n")[1].startsWith("inc "));
+
+        profile.clear();
+        assertTrue(profile.getEntries().isEmpty());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        Main.Result result = Main.preprocess(new String[0], "#define a b\na\n");
+        assertNull(result.preprocessor.getMacroProfile());
+    }
+
+    @Test
+    public void testOptions() throws Exception {
+        String source = "#define a b\na\n";
+        assertNull(Main.preprocess(new String[]{"--macro-profile", "-1"}, source));
+        assertNull(Main.preprocess(new String[]{"--macro-profile", "5", "--macro-profile-sort", "bogus"}, source));
+        /* The sort column is only checked when profiling. */
+        assertNotNull(Main.preprocess(new String[]{"--macro-profile-sort", "bogus"}, source));
+        Main.Result result = Main.preprocess(new String[]{"--macro-profile", "0", "--macro-profile-sort", "Expansions"}, source);
+        assertEquals(1, result.preprocessor.getMacroProfile().getEntries().size());
+    }
+
+    @Test
+    public void testPrelude() throws Exception {
+        File dir = Files.createTempDirectory("profile").toFile();
+        File a = new File(dir, "a.h");
+        File b = new File(dir, "b.h");
+        Files.write(a.toPath(), "#define X 1\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(b.toPath(), "\n#define Y(y) y\n".getBytes(StandardCharsets.UTF_8));
+        File prelude = new File(dir, "prelude.bin");
+        Main.preprocess(new String[]{"-I", dir.getPath(), "--save-prelude", prelude.getPath()},
+                "#include <a.h>\n#include <b.h>\n");
+
+        String source = "X Y(2)\n"
+                + "#undef X\n"
+                + "#define X 3\n"
+                + "X\n";
+        Main.Result result = Main.preprocess(new String[]{
+            "--prelude", prelude.getPath(), "--macro-profile", "10"}, source);
+        Map<String, Long> expansions = new HashMap<String, Long>();
+        for (MacroProfile.Entry entry : result.preprocessor.getMacroProfile().getEntries())
+            expansions.put(entry.getName() + " " + entry.getLocation(), entry.get(MacroProfile.Column.EXPANSIONS));
+        assertEquals(3, expansions.size());
+        assertEquals(Long.valueOf(1), expansions.get("X " + a.getPath() + ":1"));
+        assertEquals(Long.valueOf(1), expansions.get("Y " + b.getPath() + ":2"));
+        assertEquals(Long.valueOf(1), expansions.get("X <input>:3"));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class MappedFileLexerSourceTest {
+
+    private static List<String> lex(Source s) throws Exception {
+        List<String> out = new ArrayList<String>();
+        try {
+            for (;;) {
+                Token tok = s.token().token;
+                if (tok.getType() == Token.EOF)
+                    break;
+                out.add(tok.getType() + ":" + tok.getText() + "@" + tok.getLine() + ":" + tok.getColumn());
+            }
+        } finally {
+            s.close();
+        }
+        return out;
+    }
+
+    private static void testFile(String text) throws Exception {
+        File file = File.createTempFile("mapped", ".h");
+        try {
+            Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+            List<String> expected = lex(new FileLexerSource(file, StandardCharsets.UTF_8));
+            assertEquals(expected, lex(new MappedFileLexerSource(file, StandardCharsets.UTF_8)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testAscii() throws Exception {
+        testFile("#define foo(x) \"x\\\\\\n\" /* comment */ x\n"
+                + "\tint  spliced_\\\nidentifier = 'c'; // to the end\n");
+        testFile("");
+    }
+
+    @Test
+    public void testUnicode() throws Exception {
+        testFile("/* caf\u00e9 \u2603 */\nconst char *s = \"na\u00efve\";\n");
+    }
+
+    @Test
+    public void testPreprocessor() throws Exception {
+        JavaFileSystem fs = new JavaFileSystem();
+        fs.setMemoryMapped(true);
+        Preprocessor pp = new Preprocessor();
+        pp.setFileSystem(fs);
+        pp.getSystemIncludePath().add("src/test/resources");
+        pp.addInput(new StringLexerSource("#include <guard.h>\n", true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER)
+                out.append(tok.getText());
+        }
+        assertEquals("guarded", out.toString());
+    }
+}
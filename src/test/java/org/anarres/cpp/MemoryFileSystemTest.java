@@ -0,0 +1,153 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryFileSystemTest {
+
+    private static String preprocess(VirtualFileSystem fs, TokenCache cache, String dir, String input) throws Exception {
+        return preprocess(fs, cache, null, dir, input);
+    }
+
+    private static String preprocess(VirtualFileSystem fs, TokenCache cache, IncludeCache includes, String dir, String input) throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.setListener(new DefaultPreprocessorListener());
+        pp.setFileSystem(fs);
+        pp.setTokenCache(cache);
+        pp.setIncludeCache(includes);
+        pp.getSystemIncludePath().add(dir);
+        pp.addInput(new StringLexerSource(input, true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER)
+                out.append(tok.getText()).append(' ');
+        }
+        return out.toString().trim();
+    }
+
+    @Test
+    public void testMemory() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        fs.put("/mem/a.h", "#include \"sys/../b.h\"\nfrom_a\n");
+        fs.put("/mem/./b.h", "from_b\n".toCharArray());
+        assertEquals(2, fs.size());
+        assertTrue(fs.getFile("/mem", "a.h").isFile());
+        assertTrue(fs.getFile("/mem/sys/../b.h").isFile());
+        assertFalse(fs.getFile("/mem", "c.h").isFile());
+        assertEquals("/mem", fs.getFile("/mem/a.h").getParentFile().getPath());
+
+        TokenCache cache = new TokenCache();
+        assertEquals("from_b from_a", preprocess(fs, cache, "/mem", "#include <a.h>\n"));
+
+        /* A replaced file is not served from the token cache. */
+        fs.put("/mem/b.h", "from_b2\n");
+        assertEquals("from_b2 from_a", preprocess(fs, cache, "/mem", "#include <a.h>\n"));
+
+        assertTrue(fs.remove("/mem/b.h"));
+        assertFalse(fs.getFile("/mem/b.h").isFile());
+    }
+
+    @Test
+    public void testRelative() throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        fs.put("main.c", "#include \"a.h\"\nfrom_main\n");
+        fs.put("a.h", "from_a\n");
+        assertEquals("", fs.getFile("main.c").getParentFile().getPath());
+        assertTrue(fs.getFile("", "a.h").isFile());
+
+        Preprocessor pp = new Preprocessor();
+        pp.setListener(new DefaultPreprocessorListener());
+        pp.setFileSystem(fs);
+        pp.addInput(fs.getFile("main.c").getSource());
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER)
+                out.append(tok.getText()).append(' ');
+        }
+        assertEquals("from_a from_main", out.toString().trim());
+    }
+
+    @Test
+    public void testOverlay() throws Exception {
+        File root = Files.createTempDirectory("overlay").toFile();
+        try {
+            Files.write(new File(root, "a.h").toPath(), "from_disk_a\n".getBytes(StandardCharsets.UTF_8));
+            Files.write(new File(root, "b.h").toPath(), "from_disk_b\n".getBytes(StandardCharsets.UTF_8));
+            String dir = root.getPath();
+
+            MemoryFileSystem fs = new MemoryFileSystem(new JavaFileSystem());
+            fs.put(new File(root, "b.h").getPath(), "from_memory_b\n");
+            String input = "#include <a.h>\n#include <b.h>\n#include <c.h>\n";
+            assertEquals("from_disk_a from_memory_b", preprocess(fs, null, dir, input));
+
+            fs.remove(new File(root, "b.h").getPath());
+            assertEquals("from_disk_a from_disk_b", preprocess(fs, null, dir, input));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void testIncludeCache() throws Exception {
+        File root = Files.createTempDirectory("overlay").toFile();
+        try {
+            Files.write(new File(root, "a.h").toPath(), "from_disk_a\n".getBytes(StandardCharsets.UTF_8));
+            String dir = root.getPath();
+            String path = new File(root, "b.h").getPath();
+
+            MemoryFileSystem fs = new MemoryFileSystem(new JavaFileSystem());
+            IncludeCache includes = new IncludeCache();
+            includes.setCheckInterval(0);
+            String input = "#include <a.h>\n#include <b.h>\nend\n";
+            assertEquals("from_disk_a end", preprocess(fs, null, includes, dir, input));
+            assertEquals(2, includes.size());
+            assertEquals("from_disk_a end", preprocess(fs, null, includes, dir, input));
+            assertEquals(2, includes.getHits());
+
+            /* Neither the missing file nor the one found may be stale. */
+            fs.put(path, "from_memory_b\n");
+            fs.put(new File(root, "a.h").getPath(), "from_memory_a\n");
+            assertEquals("from_memory_a from_memory_b end", preprocess(fs, null, includes, dir, input));
+
+            fs.remove(path);
+            assertEquals("from_memory_a end", preprocess(fs, null, includes, dir, input));
+
+            MemoryFileSystem memory = new MemoryFileSystem();
+            includes.clear();
+            assertEquals("end", preprocess(memory, null, includes, "/mem", "#include <c.h>\nend\n"));
+            memory.put("/mem/c.h", "from_memory_c\n");
+            assertEquals("from_memory_c end", preprocess(memory, null, includes, "/mem", "#include <c.h>\nend\n"));
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+}
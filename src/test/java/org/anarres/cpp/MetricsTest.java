@@ -0,0 +1,122 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.pcollections.ConsPStack;
+import org.pcollections.PSequence;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void testDisabled() throws Exception {
+        Main.Result result = Main.preprocess(new String[0], "#define a b\na\n");
+        assertNull(result.preprocessor.getMetrics());
+        assertNull(new Backward(result.preprocessor).getMetrics());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        File dir = Files.createTempDirectory("metrics").toFile();
+        Files.write(new File(dir, "a.h").toPath(), "#define f(x) (x + 1)\n".getBytes(StandardCharsets.UTF_8));
+        String source = "#include <a.h>\n"
+                + "#define N 2\n"
+                + "f(N) f(f(3))\n";
+        Main.Result result = Main.preprocess(new String[]{"--metrics", "-I", dir.getPath()}, source);
+        Metrics metrics = result.preprocessor.getMetrics();
+        assertNotNull(metrics);
+
+        for (Metrics.Phase phase : new Metrics.Phase[]{
+            Metrics.Phase.LEX, Metrics.Phase.DIRECTIVE, Metrics.Phase.MACRO,
+            Metrics.Phase.ARGUMENTS, Metrics.Phase.INCLUDE, Metrics.Phase.IO,
+            Metrics.Phase.RECORD})
+            assertTrue(phase.name(), metrics.getCount(phase) > 0);
+        assertEquals(1, metrics.getCount(Metrics.Phase.INCLUDE));
+        assertEquals(3, metrics.getCount(Metrics.Phase.DIRECTIVE));
+        /* Includes the actions nested within argument expansions. */
+        assertTrue(metrics.get(Metrics.Counter.ACTIONS) > result.actions.size());
+        assertTrue(metrics.get(Metrics.Counter.ENVIRONMENTS) > 0);
+        assertEquals(0, metrics.getCount(Metrics.Phase.FORWARD));
+
+        /* Running the recorded actions backward with no changes. */
+        List<PSequence<TokenS>> changes = new ArrayList<PSequence<TokenS>>();
+        for (TokenS tok : result.produced)
+            changes.add(ConsPStack.singleton(tok));
+        Backward backward = new Backward(result.preprocessor);
+        assertNotNull(backward.backward(changes, result.actions));
+        assertTrue(metrics.getCount(Metrics.Phase.FORWARD) > 0);
+        assertEquals(backward.getForwardCalls(), metrics.getCount(Metrics.Phase.FORWARD));
+        assertEquals(backward.getForwardSteps(), metrics.get(Metrics.Counter.FORWARD_STEPS));
+        assertTrue(metrics.getStrategySuccesses("PreserveRoot") > 0);
+        assertTrue(metrics.getStrategyAttempts("PreserveRoot") >= metrics.getStrategySuccesses("PreserveRoot"));
+
+        JsonObject json = metrics.toJson();
+        assertTrue(json.getAsJsonObject("phases").has("macro"));
+        assertTrue(json.getAsJsonObject("counters").has("actions"));
+        assertTrue(json.getAsJsonObject("strategies").has("PreserveRoot"));
+
+        Metrics total = new Metrics();
+        total.addAll(metrics);
+        total.addAll(metrics);
+        assertEquals(2 * metrics.getNanos(Metrics.Phase.MACRO), total.getNanos(Metrics.Phase.MACRO));
+        total.clear();
+        assertEquals(0, total.getCount(Metrics.Phase.LEX));
+    }
+
+    @Test
+    public void testLocale() throws Exception {
+        Locale locale = Locale.getDefault();
+        /* Where "DIRECTIVE".toLowerCase() has a dotless i. */
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            JsonObject json = new Metrics().toJson();
+            assertTrue(json.toString(), json.getAsJsonObject("phases").has("directive"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void testCheckPrintsBackwardMetrics() throws Exception {
+        Main.Result result = Main.preprocess(new String[]{"--metrics"}, "#define f(x) x + 1\nf(2)\n");
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(buf, true, "UTF-8"));
+        try {
+            assertTrue(Main.check(result));
+        } finally {
+            System.setErr(err);
+        }
+        JsonObject json = new JsonParser().parse(buf.toString("UTF-8")).getAsJsonObject();
+        assertTrue(json.getAsJsonObject("strategies").has("PreserveRoot"));
+        assertTrue(json.getAsJsonObject("counters").get("forward_steps").getAsLong() > 0);
+    }
+}
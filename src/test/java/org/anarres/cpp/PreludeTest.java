@@ -0,0 +1,93 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PreludeTest {
+
+    private static final String PRELUDE
+            = "#include <guard.h>\n"
+            + "#define NUM 0x10UL\n"
+            + "#define FLT 1.5e3f\n"
+            + "#define CH 'c'\n"
+            + "#define STR \"s\\n\"\n"
+            + "#define CAT(a, b) a ## b\n"
+            + "#define QUOTE(x) #x\n"
+            + "#define VA(x, ...) x: __VA_ARGS__\n"
+            + "#define EMPTY()\n"
+            + "__COUNTER__ __COUNTER__\n";
+
+    private static final String BODY
+            = "#include <guard.h>\n"
+            + "#if NUM == 16 && defined CAT\n"
+            + "NUM FLT CH STR CAT(x, y) QUOTE(a + b) VA(1, 2, 3) EMPTY() __COUNTER__\n"
+            + "#endif\n";
+
+    private static String preprocess(Preprocessor pp, String input) throws Exception {
+        pp.setSystemIncludePath(Collections.singletonList("src/test/resources"));
+        pp.addInput(new StringLexerSource(input, true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            out.append(tok.getText());
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        preprocess(pp, PRELUDE);
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        pp.getPrelude().write(buf);
+        Prelude prelude = Prelude.read(new ByteArrayInputStream(buf.toByteArray()));
+        assertEquals(pp.getMacros().keySet(), prelude.getMacros().keySet());
+        for (Macro m : pp.getMacros().values())
+            assertEquals(m.toString(), prelude.getMacros().get(m.getName()).toString());
+        assertSame(pp.getMacro("__LINE__"), prelude.getMacros().get("__LINE__"));
+
+        String expected = preprocess(pp, BODY);
+        assertEquals("\n\n0x10UL 1.5e3f 'c' \"s\\n\" xy \"a + b\" 1: 2, 3  2\n\n", expected);
+
+        Preprocessor loaded = new Preprocessor(prelude);
+        CountingListener listener = new CountingListener();
+        loaded.setListener(listener);
+        assertEquals(expected, preprocess(loaded, BODY));
+        /* The include guard was carried over, so the header was not reopened. */
+        assertEquals(0, listener.pushed);
+    }
+
+    private static class CountingListener extends DefaultPreprocessorListener {
+
+        private int pushed = 0;
+
+        @Override
+        public void handleSourceChange(Source source, SourceChangeEvent event) {
+            if (event == SourceChangeEvent.PUSH && source instanceof FileLexerSource)
+                pushed++;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PreprocessorResetTest {
+
+    private static String preprocess(Preprocessor pp, String input) throws Exception {
+        pp.addInput(new StringLexerSource(input, true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() != Token.NL && tok.getType() != Token.WHITESPACE
+                    && tok.getType() != Token.CCOMMENT)
+                out.append(tok.getText()).append(' ');
+        }
+        return out.toString().trim();
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.addFeature(Feature.PRAGMA_ONCE);
+        pp.setSystemIncludePath(Collections.singletonList("src/test/resources"));
+        pp.addMacro("FOO", "foo");
+        Prelude start = pp.getPrelude();
+
+        assertEquals("foo bar 0 guarded",
+                preprocess(pp, "#define BAR bar\nFOO BAR __COUNTER__\n#include <guard.h>\n#include <guard.h>\n"));
+        assertFalse(pp.getPrelude().macros == start.macros);
+
+        pp.reset(start);
+        assertEquals(start.macros, pp.getPrelude().macros);
+        /* BAR and GUARD_H are gone, so the header is read again. */
+        assertEquals("foo BAR 0 guarded",
+                preprocess(pp, "FOO BAR __COUNTER__\n#include <guard.h>\n"));
+    }
+
+    @Test
+    public void testResetMidway() throws Exception {
+        Preprocessor pp = new Preprocessor();
+        Prelude start = pp.getPrelude();
+        pp.addInput(new StringLexerSource("#if 1\nabandoned\n", true));
+        Token tok;
+        do {
+            tok = pp.token().token;
+        } while (tok.getType() != Token.IDENTIFIER);
+        assertEquals("abandoned", tok.getText());
+
+        pp.reset(start);
+        assertEquals("x", preprocess(pp, "x\n"));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotFileSystemTest {
+
+    private static void write(File file, String text) throws Exception {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        File root = Files.createTempDirectory("snapshot").toFile();
+        try {
+            testSnapshot(root);
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    private static void testSnapshot(File root) throws Exception {
+        new File(root, "sys").mkdir();
+        write(new File(root, "a.h"), "a\n");
+        write(new File(root, "sys/b.h"), "b\n");
+
+        SnapshotFileSystem fs = new SnapshotFileSystem();
+        String dir = root.getPath();
+        assertTrue(fs.getFile(dir, "a.h").isFile());
+        assertTrue(fs.getFile(dir, "sys/b.h").isFile());
+        assertFalse(fs.getFile(dir, "sys").isFile());
+        assertFalse(fs.getFile(dir, "c.h").isFile());
+        assertFalse(fs.getFile(dir, "missing/c.h").isFile());
+        assertEquals(3, fs.size());
+
+        /* Not seen until invalidated. */
+        write(new File(root, "c.h"), "c\n");
+        assertFalse(fs.getFile(dir, "c.h").isFile());
+        fs.invalidate(dir);
+        assertTrue(fs.getFile(dir, "c.h").isFile());
+
+        new File(root, "sys/b.h").delete();
+        assertTrue(fs.getFile(dir, "sys/b.h").isFile());
+        fs.invalidate();
+        assertFalse(fs.getFile(dir, "sys/b.h").isFile());
+        assertTrue(fs.getFile(dir, "a.h").isFile());
+        new File(root, "a.h").delete();
+        fs.invalidate(dir);
+        assertFalse(fs.getFile(dir, "a.h").isFile());
+    }
+
+    @Test
+    public void testPreprocess() throws Exception {
+        File root = Files.createTempDirectory("snapshot").toFile();
+        try {
+            testPreprocess(root);
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    private static void testPreprocess(File root) throws Exception {
+        write(new File(root, "x.h"), "from_x\n");
+
+        Preprocessor pp = new Preprocessor();
+        pp.setListener(new DefaultPreprocessorListener());
+        pp.setFileSystem(new SnapshotFileSystem());
+        pp.getSystemIncludePath().add(new File(root, "none").getPath());
+        pp.getSystemIncludePath().add(root.getPath());
+        pp.addInput(new StringLexerSource("#include <x.h>\n", true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() == Token.IDENTIFIER)
+                out.append(tok.getText());
+        }
+        assertEquals("from_x", out.toString());
+    }
+
+    /* Waits for the watcher to notice that the file exists. */
+    private static void await(SnapshotFileSystem fs, String dir, String name) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!fs.getFile(dir, name).isFile()) {
+            assertTrue("Change not noticed", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testWatch() throws Exception {
+        File root = Files.createTempDirectory("snapshot").toFile();
+        String dir = root.getPath();
+        SnapshotFileSystem fs = new SnapshotFileSystem();
+        try {
+            fs.startWatching();
+            assertFalse(fs.getFile(dir, "w.h").isFile());
+            write(new File(root, "w.h"), "w\n");
+            await(fs, dir, "w.h");
+
+            /* A missing include directory, found once it is created. */
+            String missing = new File(root, "a/b").getPath();
+            assertFalse(fs.getFile(missing, "m.h").isFile());
+            new File(missing).mkdirs();
+            write(new File(missing, "m.h"), "m\n");
+            await(fs, missing, "m.h");
+        } finally {
+            fs.close();
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+}
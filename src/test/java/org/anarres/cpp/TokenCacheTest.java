@@ -0,0 +1,159 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenCacheTest {
+
+    private static final String HEADER
+            = "#ifndef LEVEL\n"
+            + "#include <test1.h>\n"
+            + "#elif LEVEL > 1\n"
+            + "  high 'x' \"#y\" /* #z\n"
+            + "#include <missing.h>\n"
+            + "*/\n"
+            + "#else\n"
+            + "#include \"test0.h\"\n\n\n"
+            + "low __LINE__\n"
+            + "#endif\n";
+
+    private static String preprocess(TokenCache cache, File dir, String input) throws Exception {
+        return preprocess(cache, null, dir, input);
+    }
+
+    private static String preprocess(TokenCache cache, PreprocessorListener listener, File dir, String input) throws Exception {
+        Preprocessor pp = new Preprocessor();
+        pp.setListener(listener);
+        pp.setTokenCache(cache);
+        pp.setQuoteIncludePath(Collections.singletonList("src/test/resources"));
+        pp.setSystemIncludePath(Arrays.asList(dir.getPath(), "src/test/resources"));
+        pp.addInput(new StringLexerSource(input, true));
+        StringBuilder out = new StringBuilder();
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            out.append(tok.getText());
+        }
+        return out.toString();
+    }
+
+    private static File write(File dir, String name, String text) throws IOException {
+        File file = new File(dir, name);
+        Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        File dir = Files.createTempDirectory("tokencache").toFile();
+        dir.deleteOnExit();
+        write(dir, "header.h", HEADER);
+
+        String input = "#include <header.h>\n"
+                + "#define LEVEL 2\n"
+                + "#include <header.h>\n"
+                + "#undef LEVEL\n"
+                + "#define LEVEL 1\n"
+                + "#include <header.h>\n";
+        String expected = preprocess(null, dir, input);
+
+        TokenCache cache = new TokenCache();
+        assertEquals(expected, preprocess(cache, dir, input));
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.getMisses());
+        /* Shared with a second preprocessor. */
+        assertEquals(expected, preprocess(cache, dir, input));
+        assertEquals(3, cache.getMisses());
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    public void testModified() throws Exception {
+        File dir = Files.createTempDirectory("tokencache").toFile();
+        dir.deleteOnExit();
+        File file = write(dir, "header.h", "first\n");
+
+        TokenCache cache = new TokenCache();
+        assertEquals("\nfirst\n", preprocess(cache, dir, "#include <header.h>\n"));
+        write(dir, "header.h", "second\n");
+        file.setLastModified(file.lastModified() + 2000);
+        assertEquals("\nsecond\n", preprocess(cache, dir, "#include <header.h>\n"));
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        File dir = Files.createTempDirectory("tokencache").toFile();
+        dir.deleteOnExit();
+        write(dir, "a.h", "a\n");
+        write(dir, "b.h", "b\n");
+
+        /* Room for either file, but not both. */
+        TokenCache cache = new TokenCache(150);
+        preprocess(cache, dir, "#include <a.h>\n#include <b.h>\n#include <b.h>\n");
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertTrue(cache.getWeight() <= cache.getCapacity());
+
+        preprocess(cache, dir, "#include <a.h>\n");
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testDiagnostics() throws Exception {
+        File dir = Files.createTempDirectory("tokencache").toFile();
+        dir.deleteOnExit();
+        write(dir, "skipped.h", "#if 0\nint x = 09;\n#endif\nok\n");
+        write(dir, "active.h", "#if 1\nint x = 09;\n#endif\n");
+
+        /* Without a listener, a diagnostic in a skipped block would throw. */
+        String input = "#include <skipped.h>\n";
+        String expected = preprocess(null, dir, input);
+        TokenCache cache = new TokenCache();
+        assertEquals(expected, preprocess(cache, dir, input));
+        assertEquals(expected, preprocess(cache, dir, input));
+        assertEquals(1, cache.getHits());
+
+        /* Reported on every replay, as if lexed afresh. */
+        input = "#include <active.h>\n#include <active.h>\n";
+        DefaultPreprocessorListener listener = new DefaultPreprocessorListener();
+        expected = preprocess(null, listener, dir, input);
+        assertEquals(2, listener.getWarnings());
+        listener = new DefaultPreprocessorListener();
+        assertEquals(expected, preprocess(cache, listener, dir, input));
+        assertEquals(2, listener.getWarnings());
+    }
+}
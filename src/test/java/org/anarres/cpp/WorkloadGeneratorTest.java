@@ -0,0 +1,103 @@
+/*
+ * Anarres C Preprocessor
+ * Copyright (c) 2007-2015, Shevek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.anarres.cpp;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkloadGeneratorTest {
+
+    private static class FailingListener extends DefaultPreprocessorListener {
+
+        @Override
+        public void handleError(Source source, int line, int column, String msg) throws LexerException {
+            throw new LexerException(source + ":" + line + ":" + column + ": " + msg);
+        }
+    }
+
+    private static int preprocess(WorkloadGenerator generator) throws Exception {
+        MemoryFileSystem fs = new MemoryFileSystem();
+        generator.writeTo(fs, "/w");
+        Preprocessor pp = new Preprocessor();
+        pp.addFeature(Feature.PRAGMA_ONCE);
+        pp.setListener(new FailingListener());
+        pp.setFileSystem(fs);
+        pp.getSystemIncludePath().add("/w/" + WorkloadGenerator.INCLUDE_DIR);
+        pp.addInput(fs.getFile("/w/" + WorkloadGenerator.MAIN).getSource());
+        int count = 0;
+        for (;;) {
+            Token tok = pp.token().token;
+            if (tok.getType() == Token.EOF)
+                break;
+            if (tok.getType() != Token.WHITESPACE && tok.getType() != Token.NL)
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testDeterministic() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        Map<String, String> a = generator.generate();
+        assertEquals(a, generator.generate());
+        assertEquals(17, a.size());
+        assertTrue(a.containsKey(WorkloadGenerator.MAIN));
+        generator.setSeed(1);
+        assertFalse(a.equals(generator.generate()));
+    }
+
+    @Test
+    public void testPreprocess() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.setPasteDensity(0.5);
+        generator.setStringifyDensity(0.5);
+        generator.setConditionalDepth(4);
+        int guarded = preprocess(generator);
+        assertTrue(guarded > 1000);
+
+        generator.setGuardStyle(WorkloadGenerator.GuardStyle.PRAGMA_ONCE);
+        assertEquals(guarded, preprocess(generator));
+        /* Rereading unguarded headers yields more declarations. */
+        generator.setGuardStyle(WorkloadGenerator.GuardStyle.NONE);
+        assertTrue(preprocess(generator) > guarded);
+
+        generator.setArguments(0);
+        generator.setHeaders(0);
+        preprocess(generator);
+    }
+
+    @Test
+    public void testMain() throws Exception {
+        File dir = Files.createTempDirectory("workload").toFile();
+        dir.deleteOnExit();
+        WorkloadGenerator.main(new String[]{"-o", dir.getPath(), "--lines", "10", "--headers", "3", "--guard", "pragma-once"});
+        /* Deleted in reverse order, so the files before their directories. */
+        File include = new File(dir, "include");
+        include.deleteOnExit();
+        for (File file : include.listFiles())
+            file.deleteOnExit();
+        new File(dir, WorkloadGenerator.MAIN).deleteOnExit();
+        assertTrue(new File(dir, WorkloadGenerator.MAIN).isFile());
+        assertTrue(new File(dir, "include/h2.h").isFile());
+    }
+
+}
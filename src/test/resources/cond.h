@@ -0,0 +1,10 @@
+#if LEVEL > 1 && defined(EXTRA)
+high_extra
+#elif LEVEL > 1
+high
+#else
+low
+#endif
+#if __COUNTER__ == 0
+first
+#endif
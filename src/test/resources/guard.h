@@ -0,0 +1,5 @@
+/* A guarded header. */
+#ifndef GUARD_H
+#define GUARD_H
+guarded
+#endif
@@ -0,0 +1,5 @@
+#if !defined(NOTGUARD_H)
+#define NOTGUARD_H
+first
+#endif
+always